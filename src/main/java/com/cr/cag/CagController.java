@@ -1,6 +1,9 @@
 package com.cr.cag;
 
+import java.util.Map;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -16,6 +19,12 @@ public class CagController
 	@Autowired
 	private CagDecoder decoder;
 	
+	@Autowired
+	private CagReporter reporter;
+	
+	@Autowired
+	private CagServer server;
+	
 	@PostMapping(value= {"/dump/{seconds}","/dump"})
 	public void dump(@PathVariable(value="seconds",required=false) Integer seconds) throws Exception
 	{
@@ -26,4 +35,22 @@ public class CagController
 		
 		decoder.dump(s);
 	}
+	
+	@GetMapping("/latency")
+	public Map<String,Map<String,Object>> latency()
+	{
+		return reporter.latency();
+	}
+	
+	@GetMapping("/throttled")
+	public Map<String,Map<String,Object>> throttled()
+	{
+		return server.throttled();
+	}
+	
+	@GetMapping(value="/metrics",produces="text/plain; version=0.0.4; charset=utf-8")
+	public String metrics()
+	{
+		return reporter.metrics();
+	}
 }
@@ -1,19 +1,23 @@
 package com.cr.cag;
 
 import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.PostConstruct;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -27,17 +31,38 @@ import lombok.extern.slf4j.Slf4j;
 public class CagDecoder extends ChannelInboundHandlerAdapter
 {
 	private static final AttributeKey<ByteBuf> BUF = AttributeKey.valueOf("BUF");
+	//BUF is a buffer of accumulate() not yet full, its frame at index 0
+	private static final AttributeKey<Boolean> ACC = AttributeKey.valueOf("ACC");
 	private static final AttributeKey<Long> UPT = AttributeKey.valueOf("UPT");
+	private static final AttributeKey<ByteBuf> ACK = AttributeKey.valueOf("ACK");
+	private static final AttributeKey<CagLarge> LARGE = AttributeKey.valueOf("LARGE");
 	
-	private static final Document WAITING = new Document();
-	private static final Document FAILURE = new Document();
+	private static final CagMessage WAITING = new CagMessage(null,0,0L);
+	private static final CagMessage FAILURE = new CagMessage(null,0,0L);
+	private static final CagMessage STREAMING = new CagMessage(null,0,0L);
 	
-	private static final ThreadLocal<SimpleDateFormat> DATE = ThreadLocal.withInitial(()->new SimpleDateFormat("yyyyMMddHHmmssSSS"));
+	//reads of a frame kept as components before the rest is accumulated, past them lookups cost more than a copy
+	private static final int COMPONENTS = 64;
+	
+	private static final byte[] TIME = "time".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TEXT = "text".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ID = "_id".getBytes(StandardCharsets.US_ASCII);
+	//written by the decoder after the fields, in place of those of the frame
+	private static final byte[][] OWN = {"size".getBytes(StandardCharsets.US_ASCII),"insertTime".getBytes(StandardCharsets.US_ASCII),"STATE".getBytes(StandardCharsets.US_ASCII)};
 	
 	@Autowired
 	private CagProperties cag;
 	
+	@Autowired
+	private CagMetrics metrics;
+	
+	@Autowired
+	private CagDedup dedup;
+	
 	private Charset charset;
+	private boolean utf8;
+	private byte[] receiveTime;
+	private CagStrings strings;
 	
 	private LongAdder read = new LongAdder();
 	
@@ -47,6 +72,9 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 	private void init()
 	{
 		charset = Charset.forName(cag.getDcCharset());
+		utf8 = StandardCharsets.UTF_8.equals(charset);
+		receiveTime = cag.getDcReceiveTime().getBytes(charset);
+		strings = new CagStrings(charset);
 	}
 	
 	@Override
@@ -55,15 +83,36 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 		ByteBuf buf = ctx.channel().attr(BUF).getAndSet(null);
 		if(buf != null)
 			buf.release();
+		ctx.channel().attr(ACC).set(null);
+		
+		ByteBuf ack = ctx.channel().attr(ACK).getAndSet(null);
+		if(ack != null)
+			ack.release();
+		
+		ctx.channel().attr(LARGE).set(null);
+	}
+	
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception
+	{
+		if(cag.getDcAckDelay().isZero())
+			flush(ctx);
+		
+		super.channelReadComplete(ctx);
 	}
 	
 	@Override
 	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
 	{
+		long t = System.nanoTime();
 		ByteBuf m = (ByteBuf)msg;
 		read.add(m.readableBytes());
 		
+		if(log.isDebugEnabled())
+			log.debug("cag-session({}) read: {}}",ctx.channel().remoteAddress(),dump(m));
+		
 		ByteBuf buf = ctx.channel().attr(BUF).getAndSet(null);
+		boolean a = ctx.channel().attr(ACC).getAndSet(null) != null;
 		if(buf == null)
 			buf = m;
 		else if(System.currentTimeMillis()-ctx.channel().attr(UPT).getAndSet(null) >= cag.getDcBufTime().toMillis())
@@ -72,26 +121,56 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 			
 			buf.release();
 			buf = m;
+			
+			ctx.channel().attr(LARGE).set(null);
+		}
+		else if(a)
+		{
+			//the rest of the frame accumulated, the next frame starting in the read follows as a component
+			buf.writeBytes(m,Math.min(m.readableBytes(),buf.writableBytes()));
+			
+			if(buf.isWritable())
+			{
+				m.release();
+				
+				ctx.channel().attr(BUF).set(buf);
+				ctx.channel().attr(ACC).set(Boolean.TRUE);
+				ctx.channel().attr(UPT).set(System.currentTimeMillis());
+				
+				return;
+			}
+			
+			if(m.isReadable())
+				buf = ByteBufAllocator.DEFAULT.compositeDirectBuffer(Integer.MAX_VALUE).addComponents(true,buf,m);
+			else
+				m.release();
 		}
 		else if(buf instanceof CompositeByteBuf)
 			buf = ((CompositeByteBuf)buf).addComponent(true,m);
 		else
 			buf = ByteBufAllocator.DEFAULT.compositeDirectBuffer(Integer.MAX_VALUE).addComponents(true,buf,m);
 		
-		if(log.isDebugEnabled())
-			log.debug("cag-session({}) read: {}}",ctx.channel().remoteAddress(),dump(m));
-		
-		channelRead(ctx,buf);
+		channelRead(ctx,buf,t);
 	}
 	
-	private void channelRead(ChannelHandlerContext ctx, ByteBuf buf) throws Exception
+	private void channelRead(ChannelHandlerContext ctx, ByteBuf buf, long received) throws Exception
 	{
+		CagLarge l = ctx.channel().attr(LARGE).get();
+		if(l != null && !large(ctx,buf,l))
+			return;
+		
 		int r = buf.readerIndex();
 		int w = buf.writerIndex();
+		if(r == w)
+		{
+			buf.release();
+			
+			return;
+		}
 		
 		while(true)
 		{
-			int p = buf.indexOf(buf.readerIndex(),w,(byte)0);
+			int p = CagScanner.find(buf,buf.readerIndex(),w,cag.getDcMaxSize().toBytes());
 			if(p < 0)
 			{
 				log.warn("cag-session({}) discarded dump: {}}",ctx.channel().remoteAddress(),dump(buf,r,w));
@@ -101,31 +180,53 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 				return;
 			}
 			
-			Document m = decode(ctx,buf.readerIndex(p));
+			long t = System.nanoTime();
+			CagMessage m = decode(ctx,buf.readerIndex(p),received);
 			if(m != null)
 			{
 				if(r < p)
 					log.warn("cag-session({}) discarded debris: {}}",ctx.channel().remoteAddress(),dump(buf,r,p));
 				
+				if(m == STREAMING)
+				{
+					l = new CagLarge(cag,strings,buf,received);
+					ctx.channel().attr(LARGE).set(l);
+					
+					if(!large(ctx,buf,l))
+						return;
+					
+					r = buf.readerIndex();
+					w = buf.writerIndex();
+					if(r == w)
+					{
+						buf.release();
+						
+						return;
+					}
+					
+					continue;
+				}
+				
 				if(m == WAITING)
 				{
 					//if(log.isDebugEnabled())
 					//	log.debug("cag-session({}) buffered: {}}",ctx.channel().remoteAddress(),dump(buf,p,w));
 					
-					ctx.channel().attr(BUF).set(buf);
+					ctx.channel().attr(BUF).set(accumulate(ctx,buf));
 					ctx.channel().attr(UPT).set(System.currentTimeMillis());
 					
 					return;
 				}
 				
 				r = buf.readerIndex();
+				metrics.decoded(System.nanoTime()-t,r-p);
 				
 				if(m == FAILURE)
 					log.warn("cag-session({}) discarded frame: {}} ",ctx.channel().remoteAddress(),dump(buf,p,r));
 				else
 					super.channelRead(ctx,m);
 				
-				ctx.writeAndFlush(buf.copy(p,4*9));
+				ack(ctx,buf,p);
 				
 				if(r == w)
 				{
@@ -139,7 +240,93 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 		}
 	}
 	
-	private Document decode(ChannelHandlerContext ctx, ByteBuf buf)
+	//an incomplete frame up to dcAccumulate spread over COMPONENTS reads copied into a pooled buffer of its MsgLen,
+	//the next reads copied after it and the frame decoded from contiguous memory
+	private ByteBuf accumulate(ChannelHandlerContext ctx, ByteBuf buf)
+	{
+		int n = buf.readableBytes();
+		if(n < 100 || !(buf instanceof CompositeByteBuf) || ((CompositeByteBuf)buf).numComponents() < COMPONENTS)
+			return buf;
+		
+		int l = buf.getIntLE(buf.readerIndex()+8);
+		if(l > cag.getDcAccumulate().toBytes())
+			return buf;
+		
+		ByteBuf a = ctx.alloc().directBuffer(l,l);
+		a.writeBytes(buf,buf.readerIndex(),n);
+		buf.release();
+		
+		ctx.channel().attr(ACC).set(Boolean.TRUE);
+		
+		return a;
+	}
+	
+	//returns false with buf kept for the next read while the frame is incomplete
+	private boolean large(ChannelHandlerContext ctx, ByteBuf buf, CagLarge l) throws Exception
+	{
+		long t = System.nanoTime();
+		
+		boolean done;
+		try
+		{
+			done = l.decode(buf,ctx::fireChannelRead);
+		}
+		catch(Exception e)
+		{
+			log.warn("cag-session({}) discarded large frame: {}",ctx.channel().remoteAddress(),e.toString());
+			
+			l = null;
+			done = true;
+		}
+		
+		//releases what was consumed, a large frame holds no more than a read and a chunk
+		if(buf instanceof CompositeByteBuf)
+			((CompositeByteBuf)buf).discardReadComponents();
+		
+		if(!done)
+		{
+			ctx.channel().attr(BUF).set(buf);
+			ctx.channel().attr(UPT).set(System.currentTimeMillis());
+			
+			return false;
+		}
+		
+		CagLarge c = ctx.channel().attr(LARGE).getAndSet(null);
+		if(l != null)
+		{
+			metrics.decoded(System.nanoTime()-t,l.length());
+			super.channelRead(ctx,l.message());
+		}
+		
+		ack(ctx,c.header(),0);
+		
+		return true;
+	}
+	
+	private void ack(ChannelHandlerContext ctx, ByteBuf buf, int index)
+	{
+		ByteBuf ack = ctx.channel().attr(ACK).get();
+		if(ack == null)
+		{
+			ack = ctx.alloc().directBuffer(4*9*16);
+			ctx.channel().attr(ACK).set(ack);
+			
+			long d = cag.getDcAckDelay().toNanos();
+			if(d > 0)
+				ctx.executor().schedule(()->flush(ctx),d,TimeUnit.NANOSECONDS);
+		}
+		
+		ack.writeBytes(buf,index,4*9);
+	}
+	
+	private void flush(ChannelHandlerContext ctx)
+	{
+		ByteBuf ack = ctx.channel().attr(ACK).getAndSet(null);
+		if(ack != null)
+			ctx.writeAndFlush(ack);
+	}
+	
+	private CagMessage decode(ChannelHandlerContext ctx, ByteBuf buf, long received)
 	{
 		if(buf.readableBytes() < 100)
 			return WAITING;
@@ -212,11 +399,20 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 			return null;
 		p += 76;
 		
+		long large = cag.getDcLargeSize().toBytes();
+		if(large > 0 && MsgLen > large)
+			return STREAMING;
+		
 		if(buf.readableBytes() < MsgLen)
 			return WAITING;
 		
 		try
 		{
+			CagDedup.Key key = dedup.enabled()?dedup.key(buf,p,MsgLen-100):null;
+			
+			if(cag.isDcRawBson())
+				return raw(buf,p,MsgLen,received,key);
+			
 			Document m = new Document();
 			
 			for(int i=100;i<MsgLen;)
@@ -228,10 +424,13 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 				int d = buf.getIntLE(p);
 				p += 4;
 				
-				String k = buf.getCharSequence(p,h-8-1,charset).toString();
+				String k = strings.key(buf,p,h-8-1);
 				p += h-8;
+				if(k.indexOf(0) >= 0)
+					throw new Exception("illegal key");
 				
-				String v = d>0?buf.getCharSequence(p,d-1,charset).toString():"";
+				long t = "time".equals(k)&&d>0?CagTime.parse(buf,p,d-1):CagTime.INVALID;
+				Object v = t!=CagTime.INVALID?new Date(t):d>0?strings.value(buf,p,d-1):"";
 				p += d;
 				
 				m.put(k,v);
@@ -242,26 +441,17 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 			if(m.isEmpty())
 				throw new Exception("empty message");
 			
-			m.computeIfPresent("time",(k,v)->
-			{
-				try
-				{
-					return DATE.get().parse(v.toString());
-				}
-				catch(Exception e)
-				{
-					return v;
-				}
-			});
-			
 			if(cag.isDcIgnoreText())
 				m.put("text","");
 			
+			if(!cag.getDcReceiveTime().isEmpty())
+				m.put(cag.getDcReceiveTime(),new Date(CagTime.wall(received)));
+			
 			m.put("size",MsgLen);
 			m.put("insertTime",new Date());
 			m.put("STATE",0);
 			
-			return m;
+			return new CagMessage(m,MsgLen,received,"",key);
 		}
 		catch(Exception e)
 		{
@@ -273,9 +463,150 @@ public class CagDecoder extends ChannelInboundHandlerAdapter
 		}
 	}
 	
+	private CagMessage raw(ByteBuf buf, int p, int MsgLen, long received, CagDedup.Key key) throws Exception
+	{
+		//BSON never exceeds the frame for UTF-8, other charsets grow the buffer on transcoding
+		ByteBuf b = Unpooled.buffer(MsgLen);
+		
+		b.writeIntLE(0);
+		
+		//the last _id of the frame, as a Document keeps it, otherwise one generated as the driver would
+		int id = -1;
+		for(int i=100,q=p;i<MsgLen;)
+		{
+			int h = buf.getShortLE(q);
+			int d = buf.getIntLE(q+4);
+			if(h < 9 || d < 0)
+				throw new Exception("illegal field");
+			
+			if(equals(buf,q+8,h-8-1,ID))
+				id = q;
+			
+			q += h+d;
+			i += h+d;
+		}
+		
+		if(id >= 0)
+		{
+			int d = buf.getIntLE(id+4);
+			
+			b.writeByte(0x02).writeBytes(ID).writeByte(0);
+			int l = b.writerIndex();
+			b.writeIntLE(0);
+			b.setIntLE(l,string(b,buf,id+buf.getShortLE(id),d>0?d-1:0));
+		}
+		else
+		{
+			b.writeByte(0x07).writeBytes(ID).writeByte(0);
+			b.writeBytes(new ObjectId().toByteArray());
+		}
+		
+		int n = 0;
+		for(int i=100;i<MsgLen;)
+		{
+			int h = buf.getShortLE(p);
+			int d = buf.getIntLE(p+4);
+			
+			int k = p+8;
+			int kl = h-8-1;
+			int v = p+h;
+			int vl = d>0?d-1:0;
+			
+			p += h+d;
+			i += h+d;
+			n ++;
+			
+			//keys the decoder writes itself, a BSON document must not repeat them
+			if(cag.isDcIgnoreText() && equals(buf,k,kl,TEXT) || equals(buf,k,kl,ID) || own(buf,k,kl))
+				continue;
+			
+			if(equals(buf,k,kl,TIME))
+			{
+				long t = CagTime.parse(buf,v,vl);
+				if(t != CagTime.INVALID)
+				{
+					b.writeByte(0x09);
+					b.writeBytes(TIME).writeByte(0);
+					b.writeLongLE(t);
+					
+					continue;
+				}
+			}
+			
+			b.writeByte(0x02);
+			int w = b.writerIndex();
+			string(b,buf,k,kl);
+			//a cstring, the key would end at the NUL
+			if(b.indexOf(w,b.writerIndex()-1,(byte)0) >= 0)
+				throw new Exception("illegal key");
+			int l = b.writerIndex();
+			b.writeIntLE(0);
+			b.setIntLE(l,string(b,buf,v,vl));
+		}
+		
+		if(n == 0)
+			throw new Exception("empty message");
+		
+		if(cag.isDcIgnoreText())
+			b.writeByte(0x02).writeBytes(TEXT).writeByte(0).writeIntLE(1).writeByte(0);
+		
+		if(!cag.getDcReceiveTime().isEmpty())
+		{
+			b.writeByte(0x09).writeCharSequence(cag.getDcReceiveTime(),StandardCharsets.UTF_8);
+			b.writeByte(0).writeLongLE(CagTime.wall(received));
+		}
+		
+		b.writeByte(0x10).writeCharSequence("size",StandardCharsets.US_ASCII);
+		b.writeByte(0).writeIntLE(MsgLen);
+		b.writeByte(0x09).writeCharSequence("insertTime",StandardCharsets.US_ASCII);
+		b.writeByte(0).writeLongLE(System.currentTimeMillis());
+		b.writeByte(0x10).writeCharSequence("STATE",StandardCharsets.US_ASCII);
+		b.writeByte(0).writeIntLE(0);
+		
+		b.writeByte(0);
+		b.setIntLE(0,b.writerIndex());
+		
+		return new CagMessage(new RawBsonDocument(b.array(),b.arrayOffset(),b.writerIndex()),MsgLen,received,"",key);
+	}
+	
+	private boolean own(ByteBuf buf, int index, int length)
+	{
+		for(byte[] o : OWN)
+			if(equals(buf,index,length,o))
+				return true;
+		
+		return receiveTime.length > 0 && equals(buf,index,length,receiveTime);
+	}
+	
+	//writes a NUL terminated UTF-8 string, returns its length including the terminator
+	private int string(ByteBuf b, ByteBuf buf, int index, int length)
+	{
+		int w = b.writerIndex();
+		
+		if(utf8)
+			b.writeBytes(buf,index,length);
+		else
+			b.writeCharSequence(buf.getCharSequence(index,length,charset),StandardCharsets.UTF_8);
+		b.writeByte(0);
+		
+		return b.writerIndex()-w;
+	}
+	
+	static boolean equals(ByteBuf buf, int index, int length, byte[] key)
+	{
+		if(length != key.length)
+			return false;
+		
+		for(int i=0;i<length;i++)
+			if(buf.getByte(index+i) != key[i])
+				return false;
+		
+		return true;
+	}
+	
 	public long read()
 	{
-		return read.sumThenReset();
+		return read.sum();
 	}
 	
 	public void dump(int seconds)
@@ -0,0 +1,285 @@
+package com.cr.cag;
+
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.netty.buffer.ByteBuf;
+
+import lombok.extern.slf4j.Slf4j;
+
+//frames resent after a lost ack: two generations of ddWindow/2 each, a bloom filter in front of an exact set of digests
+@Component
+@Slf4j
+public class CagDedup
+{
+	private static final int HASHES = 4;
+	
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+	
+	@Autowired
+	private CagProperties cag;
+	
+	private byte[][] keys;
+	private int bits;
+	
+	private volatile Generation current;
+	private volatile Generation previous;
+	
+	private LongAdder checked = new LongAdder();
+	private LongAdder duplicates = new LongAdder();
+	private LongAdder unconfirmed = new LongAdder();
+	
+	@PostConstruct
+	private void init()
+	{
+		if(!enabled())
+			return;
+		
+		Charset c = Charset.forName(cag.getDcCharset());
+		keys = cag.getDdKeys().stream().map(k->k.getBytes(c)).toArray(byte[][]::new);
+		bits = Integer.highestOneBit((int)Math.min(cag.getDdBits().toBytes()*8,1L<<30));
+		
+		current = new Generation(bits,System.currentTimeMillis());
+		
+		log.info("cag-dedup ready: {window: {}, keys: {}, bits: {}, exact: {}}",cag.getDdWindow(),cag.getDdKeys().isEmpty()?"frame":cag.getDdKeys(),CagUtil.toString(bits),CagUtil.toString(cag.getDdExact()));
+	}
+	
+	public boolean enabled()
+	{
+		return !cag.getDdWindow().isZero();
+	}
+	
+	//digest of the ddKeys values, or of all fields when there are none; buf at the fields of a frame
+	public Key key(ByteBuf buf, int index, int length)
+	{
+		if(keys.length == 0)
+			return hash(buf,index,length,C1,C2);
+		
+		long h1 = C1;
+		long h2 = C2;
+		int m = 0;
+		
+		for(int p=index,e=index+length;p+8<=e;)
+		{
+			int h = buf.getShortLE(p);
+			int d = buf.getIntLE(p+4);
+			if(h < 9 || d < 0 || (long)p+h+d > e)
+				return null;
+			
+			for(int i=0;i<keys.length;i++)
+			{
+				if(CagDecoder.equals(buf,p+8,h-8-1,keys[i]))
+				{
+					//the index keeps values of different keys apart
+					Key k = hash(buf,p+h,d,h1+i,h2);
+					h1 = k.h1;
+					h2 = k.h2;
+					m ++;
+					
+					break;
+				}
+			}
+			
+			p += h+d;
+		}
+		
+		return m>0?new Key(h1,h2):null;
+	}
+	
+	//true when the key was seen within the window
+	public boolean duplicate(Key key)
+	{
+		checked.add(1L);
+		
+		Generation c = generation(System.currentTimeMillis());
+		Generation p = previous;
+		
+		if(c.maybe(key) || p != null && p.maybe(key))
+		{
+			if(c.exact.contains(key) || p != null && p.exact.contains(key))
+			{
+				duplicates.add(1L);
+				
+				return true;
+			}
+			
+			//a false positive, or a key beyond ddExact
+			unconfirmed.add(1L);
+		}
+		
+		c.put(key);
+		if(c.size.get() >= cag.getDdExact())
+			return false;
+		
+		//the same key from another event loop at the same time
+		if(!c.exact.add(key))
+		{
+			duplicates.add(1L);
+			
+			return true;
+		}
+		
+		c.size.incrementAndGet();
+		
+		return false;
+	}
+	
+	private Generation generation(long time)
+	{
+		Generation c = current;
+		if(time-c.start < cag.getDdWindow().toMillis()/2)
+			return c;
+		
+		synchronized(this)
+		{
+			c = current;
+			if(time-c.start >= cag.getDdWindow().toMillis()/2)
+			{
+				previous = c;
+				current = c = new Generation(bits,time);
+			}
+			
+			return c;
+		}
+	}
+	
+	public long checked()
+	{
+		return checked.sum();
+	}
+	
+	public long duplicates()
+	{
+		return duplicates.sum();
+	}
+	
+	public long unconfirmed()
+	{
+		return unconfirmed.sum();
+	}
+	
+	//128 bits of murmur3 over 8 byte words
+	private static Key hash(ByteBuf buf, int index, int length, long h1, long h2)
+	{
+		int p = index;
+		for(int e=index+(length&~15);p<e;p+=16)
+		{
+			h1 ^= Long.rotateLeft(buf.getLongLE(p)*C1,31)*C2;
+			h1 = Long.rotateLeft(h1,27)+h2;
+			h1 = h1*5+0x52dce729;
+			
+			h2 ^= Long.rotateLeft(buf.getLongLE(p+8)*C2,33)*C1;
+			h2 = Long.rotateLeft(h2,31)+h1;
+			h2 = h2*5+0x38495ab5;
+		}
+		
+		long t1 = 0L;
+		long t2 = 0L;
+		for(int i=index+length-1;i>=p;i--)
+		{
+			if(i >= p+8)
+				t2 = t2<<8|buf.getByte(i)&0xff;
+			else
+				t1 = t1<<8|buf.getByte(i)&0xff;
+		}
+		h1 ^= Long.rotateLeft(t1*C1,31)*C2;
+		h2 ^= Long.rotateLeft(t2*C2,33)*C1;
+		
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		
+		return new Key(h1,h2);
+	}
+	
+	private static long fmix(long k)
+	{
+		k ^= k>>>33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k>>>33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k>>>33;
+		
+		return k;
+	}
+	
+	public static class Key
+	{
+		private final long h1;
+		private final long h2;
+		
+		private Key(long h1, long h2)
+		{
+			this.h1 = h1;
+			this.h2 = h2;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Key && ((Key)o).h1 == h1 && ((Key)o).h2 == h2;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return (int)h1;
+		}
+	}
+	
+	private static class Generation
+	{
+		private final AtomicLongArray bloom;
+		private final int mask;
+		private final long start;
+		
+		private final Set<Key> exact = ConcurrentHashMap.newKeySet();
+		private final AtomicInteger size = new AtomicInteger();
+		
+		private Generation(int bits, long start)
+		{
+			this.bloom = new AtomicLongArray(Math.max(bits>>>6,1));
+			this.mask = Math.max(bits,64)-1;
+			this.start = start;
+		}
+		
+		private boolean maybe(Key key)
+		{
+			for(int i=0;i<HASHES;i++)
+			{
+				int b = (int)(key.h1+i*key.h2)&mask;
+				if((bloom.get(b>>>6)&1L<<b) == 0)
+					return false;
+			}
+			
+			return true;
+		}
+		
+		private void put(Key key)
+		{
+			for(int i=0;i<HASHES;i++)
+			{
+				int b = (int)(key.h1+i*key.h2)&mask;
+				
+				long w = bloom.get(b>>>6);
+				while((w&1L<<b) == 0 && !bloom.compareAndSet(b>>>6,w,w|1L<<b))
+					w = bloom.get(b>>>6);
+			}
+		}
+	}
+}
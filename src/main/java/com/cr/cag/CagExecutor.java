@@ -1,5 +1,7 @@
 package com.cr.cag;
 
+import java.util.concurrent.ThreadFactory;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -18,9 +20,36 @@ public class CagExecutor
 	{
 		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
 		
-		executor.setCorePoolSize(1+cag.getMgWorkers());
+		if(cag.isMgVirtual())
+		{
+			//a virtual thread for every task not taken by an idle one, inserts bounded by mgInFlight and mgInFlightBytes instead
+			executor.setCorePoolSize(0);
+			executor.setQueueCapacity(0);
+			executor.setThreadFactory(virtual("cag-virtual-"));
+			
+			return executor;
+		}
+		
+		executor.setCorePoolSize(1+cag.getMgWorkers()+(cag.getMgSpool().isEmpty()?0:1));
 		executor.setThreadNamePrefix("cag-executor-");
 		
 		return executor;
 	}
+	
+	//Thread.ofVirtual().name(prefix,0).factory(), built at Java 8
+	public static ThreadFactory virtual(String prefix)
+	{
+		try
+		{
+			Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> c = Class.forName("java.lang.Thread$Builder");
+			b = c.getMethod("name",String.class,long.class).invoke(b,prefix,0L);
+			
+			return (ThreadFactory)c.getMethod("factory").invoke(b);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("mgVirtual needs Java 21",e);
+		}
+	}
 }
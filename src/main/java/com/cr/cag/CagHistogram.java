@@ -0,0 +1,105 @@
+package com.cr.cag;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//log-linear buckets, exact below 2^BITS then 2^BITS buckets per power of two (relative error < 1/32)
+public class CagHistogram
+{
+	private static final int BITS = 5;
+	private static final int SUB = 1<<BITS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray((64-BITS)*SUB);
+	private final AtomicLong max = new AtomicLong();
+	private final LongAdder sum = new LongAdder();
+	
+	public void record(long value)
+	{
+		long v = Math.max(0L,value);
+		
+		counts.incrementAndGet(index(v));
+		sum.add(v);
+		
+		for(long m=max.get();v>m&&!max.compareAndSet(m,v);)
+			m = max.get();
+	}
+	
+	public long count()
+	{
+		long c = 0;
+		for(int i=0;i<counts.length();i++)
+			c += counts.get(i);
+		
+		return c;
+	}
+	
+	//values below bound, exact when bound is a power of two
+	public long count(long bound)
+	{
+		long c = 0;
+		for(int i=0;i<counts.length()&&highest(i)<bound;i++)
+			c += counts.get(i);
+		
+		return c;
+	}
+	
+	public long sum()
+	{
+		return sum.sum();
+	}
+	
+	public long max()
+	{
+		return max.get();
+	}
+	
+	//highest value of the bucket holding the q quantile (0..1)
+	public long percentile(double q)
+	{
+		return Math.min(percentile(snapshot(),q),max.get());
+	}
+	
+	//bucket counts, the difference of two snapshots gives the values recorded in between
+	public long[] snapshot()
+	{
+		long[] s = new long[counts.length()];
+		for(int i=0;i<s.length;i++)
+			s[i] = counts.get(i);
+		
+		return s;
+	}
+	
+	public static long percentile(long[] snapshot, double q)
+	{
+		long c = 0;
+		for(long n : snapshot)
+			c += n;
+		if(c == 0)
+			return 0;
+		
+		long r = Math.max(1L,(long)Math.ceil(q*c));
+		for(int i=0;i<snapshot.length;i++)
+		{
+			r -= snapshot[i];
+			if(r <= 0)
+				return highest(i);
+		}
+		
+		return highest(snapshot.length-1);
+	}
+	
+	private static int index(long v)
+	{
+		int s = Math.max(0,63-Long.numberOfLeadingZeros(v)-BITS);
+		
+		return s*SUB+(int)(v>>>s);
+	}
+	
+	private static long highest(int index)
+	{
+		int s = Math.max(0,index/SUB-1);
+		
+		return ((long)(index-s*SUB+1)<<s)-1;
+	}
+}
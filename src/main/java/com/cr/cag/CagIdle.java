@@ -0,0 +1,110 @@
+package com.cr.cag;
+
+import io.netty.channel.Channel;
+
+//timer wheel of one event loop, only accessed from that loop
+public class CagIdle
+{
+	private static final int TICKS = 256;
+	
+	private final long idle;
+	private final long tick;
+	private final Entry[] wheel;
+	private final int mask;
+	
+	private long now;
+	private long last;
+	
+	public CagIdle(long idle, long now)
+	{
+		this.idle = idle;
+		this.tick = Math.max(1L,idle/TICKS);
+		this.wheel = new Entry[Integer.highestOneBit((int)(idle/tick)+1)<<1];
+		this.mask = wheel.length-1;
+		this.now = now;
+		this.last = now/tick;
+		
+		for(int i=0;i<wheel.length;i++)
+			wheel[i] = new Entry(this,null);
+	}
+	
+	public long tick()
+	{
+		return tick;
+	}
+	
+	public Entry add(Channel channel)
+	{
+		Entry e = new Entry(this,channel);
+		e.alive = now;
+		
+		link(e,now+idle);
+		
+		return e;
+	}
+	
+	public int expire(long time)
+	{
+		now = time;
+		
+		int c = 0;
+		for(long t=time/tick;last<t;)
+		{
+			Entry s = wheel[(int)(++last&mask)];
+			
+			for(Entry e=s.next;e!=s;e=s.next)
+			{
+				e.unlink();
+				
+				long d = e.alive+idle;
+				if(d <= now)
+				{
+					e.channel.close();
+					c ++;
+				}
+				else
+					link(e,d);
+			}
+		}
+		
+		return c;
+	}
+	
+	private void link(Entry e, long deadline)
+	{
+		Entry s = wheel[(int)(Math.max(deadline/tick,last+1)&mask)];
+		
+		e.prev = s.prev;
+		e.next = s;
+		s.prev.next = e;
+		s.prev = e;
+	}
+	
+	public static class Entry
+	{
+		private final CagIdle wheel;
+		private final Channel channel;
+		private long alive;
+		
+		private Entry prev = this;
+		private Entry next = this;
+		
+		private Entry(CagIdle wheel, Channel channel)
+		{
+			this.wheel = wheel;
+			this.channel = channel;
+		}
+		
+		public void touch()
+		{
+			alive = wheel.now;
+		}
+		
+		public void unlink()
+		{
+			prev.next = next;
+			next.prev = prev;
+			prev = next = this;
+		}
+	}
+}
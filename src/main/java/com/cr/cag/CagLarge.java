@@ -0,0 +1,221 @@
+package com.cr.cag;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClientSettings;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+//a frame above dcLargeSize decoded as its bytes arrive, values above mgChunkSize go to GridFS chunks
+public class CagLarge
+{
+	public static final String CHUNKS = ".chunks";
+	public static final String FILES = ".files";
+	
+	private static final Codec<Document> CODEC = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+	
+	private final CagProperties cag;
+	private final CagStrings strings;
+	
+	private final ByteBuf header;
+	private final int length;
+	private final long received;
+	private final Document doc = new Document("_id",new ObjectId());
+	
+	private int consumed;
+	
+	//field being read, value bytes not yet consumed including the terminator
+	private String key;
+	private int remaining;
+	private boolean small;
+	
+	//value streamed to chunks, null when skipped
+	private ObjectId file;
+	private byte[] chunk;
+	private int position;
+	private int n;
+	private long size;
+	
+	//buf at the header of a frame of MsgLen bytes
+	public CagLarge(CagProperties cag, CagStrings strings, ByteBuf buf, long received)
+	{
+		this.cag = cag;
+		this.strings = strings;
+		this.header = Unpooled.copiedBuffer(buf.slice(buf.readerIndex(),4*9));
+		this.length = buf.getIntLE(buf.readerIndex()+8);
+		this.received = received;
+		
+		buf.skipBytes(100);
+		consumed = 100;
+	}
+	
+	//first 36 bytes of the header, for the ack
+	public ByteBuf header()
+	{
+		return header;
+	}
+	
+	public int length()
+	{
+		return length;
+	}
+	
+	//consumes the readable bytes of the frame, returns true when it is complete
+	public boolean decode(ByteBuf buf, Consumer<CagMessage> out) throws Exception
+	{
+		while(true)
+		{
+			if(remaining == 0)
+			{
+				if(consumed == length)
+					return true;
+				
+				if(buf.readableBytes() < 8)
+					return false;
+				
+				int p = buf.readerIndex();
+				int h = buf.getShortLE(p);
+				int d = buf.getIntLE(p+4);
+				if(h < 9 || d < 0 || (long)consumed+h+d > length)
+					throw new Exception("illegal field");
+				
+				if(buf.readableBytes() < h)
+					return false;
+				
+				key = strings.key(buf,p+8,h-8-1);
+				buf.skipBytes(h);
+				consumed += h;
+				
+				remaining = d;
+				small = d <= cag.getMgChunkSize().toBytes();
+				if(d == 0)
+					doc.put(key,"");
+				else if(!small)
+				{
+					file = cag.isDcIgnoreText()&&"text".equals(key)?null:new ObjectId();
+					n = 0;
+					size = 0;
+				}
+				
+				continue;
+			}
+			
+			if(small)
+			{
+				if(buf.readableBytes() < remaining)
+					return false;
+				
+				int p = buf.readerIndex();
+				long t = "time".equals(key)?CagTime.parse(buf,p,remaining-1):CagTime.INVALID;
+				doc.put(key,t!=CagTime.INVALID?new Date(t):strings.value(buf,p,remaining-1));
+				
+				buf.skipBytes(remaining);
+				consumed += remaining;
+				remaining = 0;
+				
+				continue;
+			}
+			
+			int r = Math.min(buf.readableBytes(),remaining);
+			if(r == 0)
+				return false;
+			
+			//the terminator is not stored
+			if(file != null)
+				write(buf,buf.readerIndex(),Math.min(r,remaining-1),out);
+			
+			buf.skipBytes(r);
+			consumed += r;
+			remaining -= r;
+			
+			if(remaining == 0)
+			{
+				if(file != null)
+				{
+					if(position > 0)
+						out.accept(chunk(Arrays.copyOf(chunk,position)));
+					chunk = null;
+					position = 0;
+					
+					Document m = new Document("message",doc.get("_id")).append("charset",cag.getDcCharset());
+					Document f = new Document("_id",file)
+							.append("length",size)
+							.append("chunkSize",(int)cag.getMgChunkSize().toBytes())
+							.append("uploadDate",new Date())
+							.append("filename",key)
+							.append("metadata",m);
+					out.accept(new CagMessage(f,128,received,FILES,null));
+					
+					//the reference to the file replaces the value
+					doc.put(key,file);
+				}
+				else
+					doc.put(key,"");
+			}
+		}
+	}
+	
+	private void write(ByteBuf buf, int index, int length, Consumer<CagMessage> out)
+	{
+		int c = (int)cag.getMgChunkSize().toBytes();
+		
+		for(int i=index,e=index+length;i<e;)
+		{
+			if(chunk == null)
+				chunk = new byte[c];
+			
+			int l = Math.min(e-i,c-position);
+			buf.getBytes(i,chunk,position,l);
+			position += l;
+			size += l;
+			i += l;
+			
+			if(position == c)
+			{
+				out.accept(chunk(chunk));
+				chunk = null;
+				position = 0;
+			}
+		}
+	}
+	
+	private CagMessage chunk(byte[] data)
+	{
+		Document c = new Document("_id",new ObjectId())
+				.append("files_id",file)
+				.append("n",n++)
+				.append("data",new Binary(data))
+				.append("uploadDate",new Date());
+		
+		return new CagMessage(c,data.length,received,CHUNKS,null);
+	}
+	
+	//the reference document, once the frame is complete
+	public CagMessage message()
+	{
+		if(cag.isDcIgnoreText())
+			doc.put("text","");
+		
+		if(!cag.getDcReceiveTime().isEmpty())
+			doc.put(cag.getDcReceiveTime(),new Date(CagTime.wall(received)));
+		
+		doc.put("size",length);
+		doc.put("insertTime",new Date());
+		doc.put("STATE",0);
+		
+		//inserted with the raw documents of the same batch
+		if(cag.isDcRawBson())
+			return new CagMessage(new RawBsonDocument(doc,CODEC),length,received);
+		
+		return new CagMessage(doc,length,received);
+	}
+}
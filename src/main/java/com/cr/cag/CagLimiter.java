@@ -0,0 +1,40 @@
+package com.cr.cag;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//token bucket of rate units per second holding a second of them, kept as the time it is refilled to (GCRA)
+public class CagLimiter
+{
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+	
+	private final long rate;
+	private final AtomicLong full;
+	
+	public CagLimiter(long rate, long now)
+	{
+		this.rate = rate;
+		this.full = new AtomicLong(now);
+	}
+	
+	//takes units already used, returns ns to wait until the bucket is no longer in debt
+	public long acquire(long units, long now)
+	{
+		long c = units*SECOND/rate;
+		
+		while(true)
+		{
+			long f = full.get();
+			long n = (f-now>0?f:now)+c;
+			
+			if(full.compareAndSet(f,n))
+				return Math.max(n-now-SECOND,0L);
+		}
+	}
+	
+	//holds a second of units again
+	public boolean full(long now)
+	{
+		return full.get()-now <= 0;
+	}
+}
@@ -0,0 +1,473 @@
+package com.cr.cag;
+
+import java.io.BufferedReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.util.unit.DataSize;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import lombok.extern.slf4j.Slf4j;
+
+//java -Dloader.main=com.cr.cag.CagLoader -cp cr-cag.jar org.springframework.boot.loader.PropertiesLauncher [--cag.ldXxx=...]
+//or the server itself with --spring.profiles.active=load
+@Configuration
+@Profile("load")
+@EnableConfigurationProperties
+@Slf4j
+public class CagLoader implements ApplicationRunner
+{
+	private static final String[] KEYS = {"sip","dip","sport","dport","host","time","version","subject","issuer","serial","cipher"};
+	
+	//cag-session(/127.0.0.1:50000) read: <1024> 00 00 ...
+	private static final Pattern DUMP = Pattern.compile("cag-session\\((.*?)\\) (read|discarded \\w+): <(\\d+)>((?: [0-9A-F]{2})*)");
+	
+	@Autowired
+	private CagProperties cag;
+	
+	private List<Frame> frames;
+	private int[] weights;
+	private ByteBuf garbage;
+	
+	private ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+	private volatile boolean running = true;
+	
+	private LongAdder connected = new LongAdder();
+	private LongAdder failed = new LongAdder();
+	private LongAdder sent = new LongAdder();
+	private LongAdder written = new LongAdder();
+	private LongAdder acked = new LongAdder();
+	//reads carrying acks, one per flush of the server unless the client lags behind
+	private LongAdder reads = new LongAdder();
+	private LongAdder mismatched = new LongAdder();
+	private LongAdder lost = new LongAdder();
+	private CagHistogram latency = new CagHistogram();
+	
+	public static void main(String[] args)
+	{
+		System.exit(SpringApplication.exit(new SpringApplicationBuilder(CagLoader.class,CagProperties.class)
+				.profiles("load")
+				.web(WebApplicationType.NONE)
+				.run(args)));
+	}
+	
+	@Override
+	public void run(ApplicationArguments args) throws Exception
+	{
+		if(cag.getLdReplay().isEmpty())
+			generate();
+		else
+			replay(cag.getLdReplay());
+		
+		if(frames.isEmpty())
+		{
+			log.error("cag-load no frames to send");
+			
+			return;
+		}
+		
+		Random random = new Random();
+		garbage = ByteBufAllocator.DEFAULT.directBuffer(4096);
+		while(garbage.isWritable())
+			garbage.writeByte(1+random.nextInt(255));
+		
+		EventLoopGroup group = Epoll.isAvailable()?new EpollEventLoopGroup():new NioEventLoopGroup();
+		
+		Bootstrap b = new Bootstrap()
+				.group(group)
+				.channel(Epoll.isAvailable()?EpollSocketChannel.class:NioSocketChannel.class)
+				.option(ChannelOption.TCP_NODELAY,true)
+				.option(ChannelOption.SO_KEEPALIVE,true);
+		
+		log.info("cag-load start: {server: {}:{}, connections: {}, duration: {}, frames: {}, sizes: {}, split: {}, pipeline: {}, corrupt: {}}",
+				cag.getLdHost(),cag.getPort(),cag.getLdConnections(),cag.getLdDuration(),frames.size(),
+				cag.getLdReplay().isEmpty()?cag.getLdSizes():cag.getLdReplay(),CagUtil.toString(cag.getLdSplit()),cag.getLdPipeline(),cag.getLdCorrupt());
+		
+		long start = System.nanoTime();
+		
+		for(int i=0;i<cag.getLdConnections();i++)
+			b.clone().handler(new Session()).connect(cag.getLdHost(),cag.getPort()).addListener((ChannelFutureListener)f->
+			{
+				if(f.isSuccess())
+				{
+					connected.increment();
+					channels.add(f.channel());
+				}
+				else
+				{
+					failed.increment();
+					log.warn("cag-load connecting failure: {}",f.cause().toString());
+				}
+			});
+		
+		long[] last = new long[3];
+		ScheduledFuture<?> report = group.next().scheduleAtFixedRate(()->
+		{
+			long s = sent.sum();
+			long a = acked.sum();
+			long w = written.sum();
+			
+			log.info("cag-load: {connected: {}, failed: {}, sent: {}/s, acked: {}/s, written: {}/s, mismatched: {}, lost: {}}",
+					CagUtil.toString(channels.size()),CagUtil.toString(failed.sum()),CagUtil.toString(s-last[0]),CagUtil.toString(a-last[1]),
+					CagUtil.toString(DataSize.ofBytes(w-last[2])),CagUtil.toString(mismatched.sum()),CagUtil.toString(lost.sum()));
+			
+			last[0] = s;
+			last[1] = a;
+			last[2] = w;
+		},1,1,TimeUnit.SECONDS);
+		
+		Thread.sleep(cag.getLdDuration().toMillis());
+		
+		running = false;
+		
+		//waits for the acks of frames in flight
+		for(long t=System.currentTimeMillis()+cag.getDcBufTime().toMillis();outstanding()>0&&System.currentTimeMillis()<t;)
+			Thread.sleep(10);
+		
+		double seconds = (System.nanoTime()-start)/1e9;
+		
+		report.cancel(false);
+		channels.close().awaitUninterruptibly();
+		group.shutdownGracefully().awaitUninterruptibly();
+		
+		frames.forEach(f->f.data.release());
+		garbage.release();
+		
+		log.info("cag-load finished: {connected: {}, failed: {}, sent: {}, acked: {}, mismatched: {}, lost: {}, unacked: {}, written: {}, throughput: {}/s, {}/s}",
+				CagUtil.toString(connected.sum()),CagUtil.toString(failed.sum()),CagUtil.toString(sent.sum()),CagUtil.toString(acked.sum()),
+				CagUtil.toString(mismatched.sum()),CagUtil.toString(lost.sum()),CagUtil.toString(outstanding()),
+				CagUtil.toString(DataSize.ofBytes(written.sum())),CagUtil.toString(Math.round(acked.sum()/seconds)),
+				CagUtil.toString(DataSize.ofBytes(Math.round(written.sum()/seconds))));
+		log.info("cag-load latency: {p50: {}, p90: {}, p99: {}, p999: {}, max: {}, acks per read: {}}",
+				CagUtil.toString(latency.percentile(0.5)," us"),CagUtil.toString(latency.percentile(0.9)," us"),
+				CagUtil.toString(latency.percentile(0.99)," us"),CagUtil.toString(latency.percentile(0.999)," us"),
+				CagUtil.toString(latency.max()," us"),String.format("%.2f",(double)acked.sum()/Math.max(reads.sum(),1)));
+	}
+	
+	private long outstanding()
+	{
+		return sent.sum()-acked.sum()-mismatched.sum()-lost.sum();
+	}
+	
+	//cag.ldSizes: size[:weight], 16 frames of each size
+	private void generate()
+	{
+		Charset charset = Charset.forName(cag.getDcCharset());
+		Random random = new Random(0);
+		
+		frames = new ArrayList<>();
+		weights = new int[cag.getLdSizes().size()*16];
+		
+		int w = 0;
+		for(String s : cag.getLdSizes())
+		{
+			int i = s.indexOf(':');
+			long size = DataSize.parse(i<0?s:s.substring(0,i)).toBytes();
+			int weight = i<0?1:Integer.parseInt(s.substring(i+1));
+			if(weight <= 0)
+				continue;
+			
+			for(int j=0;j<16;j++)
+			{
+				w += weight;
+				weights[frames.size()] = w;
+				frames.add(new Frame(frame(fields(random,size,charset),charset),0));
+			}
+		}
+		
+		weights = Arrays.copyOf(weights,frames.size());
+	}
+	
+	//frames of the hex dumps logged while /dump is enabled, the read dumps of a session are its whole stream
+	private void replay(String file) throws Exception
+	{
+		Map<String,ByteBuf> reads = new LinkedHashMap<>();
+		List<ByteBuf> discards = new ArrayList<>();
+		
+		try(BufferedReader r = Files.newBufferedReader(Paths.get(file)))
+		{
+			for(String l;(l=r.readLine())!=null;)
+			{
+				Matcher m = DUMP.matcher(l);
+				if(!m.find())
+					continue;
+				
+				String h = m.group(4);
+				ByteBuf b = "read".equals(m.group(2))?reads.computeIfAbsent(m.group(1),k->ByteBufAllocator.DEFAULT.directBuffer()):ByteBufAllocator.DEFAULT.directBuffer(h.length()/3);
+				for(int i=1;i<h.length();i+=3)
+					b.writeByte(Integer.parseInt(h.substring(i,i+2),16));
+				
+				if(!"read".equals(m.group(2)))
+					discards.add(b);
+			}
+		}
+		
+		frames = new ArrayList<>();
+		for(ByteBuf b : reads.isEmpty()?discards:reads.values())
+		{
+			for(int r=b.readerIndex(),w=b.writerIndex();;)
+			{
+				int p = CagScanner.find(b,r,w,cag.getDcMaxSize().toBytes());
+				if(p < 0 || p+100 > w || p+b.getIntLE(p+8) > w)
+					break;
+				
+				int e = p+b.getIntLE(p+8);
+				frames.add(new Frame(b.copy(r,e-r),p-r));
+				r = e;
+			}
+		}
+		
+		reads.values().forEach(ByteBuf::release);
+		discards.forEach(ByteBuf::release);
+		
+		weights = new int[frames.size()];
+		for(int i=0;i<weights.length;i++)
+			weights[i] = i+1;
+	}
+	
+	//the text pads the frame to size
+	public static Map<String,String> fields(Random random, long size, Charset charset)
+	{
+		Map<String,String> m = keys(random);
+		
+		long l = 100;
+		for(Map.Entry<String,String> e : m.entrySet())
+			l += 8+e.getKey().getBytes(charset).length+1+e.getValue().getBytes(charset).length+1;
+		
+		m.put("text",text(random,size-l-8-"text".length()-2));
+		
+		return m;
+	}
+	
+	public static Map<String,String> fields(Random random, int text)
+	{
+		Map<String,String> m = keys(random);
+		m.put("text",text(random,text));
+		
+		return m;
+	}
+	
+	private static Map<String,String> keys(Random random)
+	{
+		Map<String,String> m = new LinkedHashMap<>();
+		
+		for(String k : KEYS)
+			m.put(k,"time".equals(k)?"20200702144835"+(100+random.nextInt(900)):Long.toHexString(random.nextLong()));
+		
+		return m;
+	}
+	
+	private static String text(Random random, long length)
+	{
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() < length)
+			sb.append((char)(' '+random.nextInt(95)));
+		
+		return sb.toString();
+	}
+	
+	//100 byte header and fields of [short key length+9][short type][int value length+1][key\0][value\0]
+	public static ByteBuf frame(Map<String,String> fields, Charset charset)
+	{
+		ByteBuf body = ByteBufAllocator.DEFAULT.heapBuffer();
+		
+		fields.forEach((k,v)->
+		{
+			byte[] kb = k.getBytes(charset);
+			byte[] vb = v.getBytes(charset);
+			
+			body.writeShortLE(8+kb.length+1).writeShortLE(1).writeIntLE(vb.length+1);
+			body.writeBytes(kb).writeByte(0);
+			body.writeBytes(vb).writeByte(0);
+		});
+		
+		int MsgLen = 100+body.readableBytes();
+		
+		ByteBuf buf = ByteBufAllocator.DEFAULT.directBuffer(MsgLen);
+		buf.writeZero(8);
+		buf.writeIntLE(MsgLen);
+		buf.writeIntLE(MsgLen);
+		buf.writeIntLE(0);
+		buf.writeIntLE(3);
+		buf.writeZero(76);
+		buf.writeBytes(body);
+		
+		body.release();
+		
+		return buf;
+	}
+	
+	private static class Frame
+	{
+		private final ByteBuf data;
+		//the server acks the first 36 bytes of the header
+		private final int header;
+		
+		private Frame(ByteBuf data, int header)
+		{
+			this.data = data;
+			this.header = header;
+		}
+	}
+	
+	private static class Pending
+	{
+		private final Frame frame;
+		private final long time;
+		
+		private Pending(Frame frame, long time)
+		{
+			this.frame = frame;
+			this.time = time;
+		}
+	}
+	
+	private class Session extends ChannelInboundHandlerAdapter
+	{
+		private Deque<Pending> pending = new ArrayDeque<>();
+		private ByteBuf acks;
+		
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception
+		{
+			for(int i=0;i<cag.getLdPipeline();i++)
+				send(ctx.channel());
+			ctx.flush();
+		}
+		
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception
+		{
+			lost.add(pending.size());
+			pending.clear();
+			
+			if(acks != null)
+				acks.release();
+			acks = null;
+		}
+		
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+		{
+			ByteBuf m = (ByteBuf)msg;
+			if(acks == null)
+				acks = ctx.alloc().heapBuffer(4*9*16);
+			acks.writeBytes(m);
+			m.release();
+			reads.increment();
+			
+			long now = System.nanoTime();
+			
+			int n = 0;
+			while(acks.readableBytes() >= 4*9)
+			{
+				Pending p = pending.poll();
+				if(p != null && ByteBufUtil.equals(acks,acks.readerIndex(),p.frame.data,p.frame.header,4*9))
+				{
+					acked.increment();
+					latency.record((now-p.time)/1000);
+				}
+				else
+				{
+					mismatched.increment();
+					log.warn("cag-load({}) mismatched ack: {}",ctx.channel().localAddress(),CagUtil.toString(acks,acks.readerIndex(),4*9));
+				}
+				
+				acks.skipBytes(4*9);
+				n ++;
+			}
+			acks.discardReadBytes();
+			
+			for(int i=0;i<n;i++)
+				send(ctx.channel());
+			ctx.flush();
+		}
+		
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+		{
+			log.warn("cag-load({}) failure: {}",ctx.channel().localAddress(),cause.toString());
+			
+			ctx.close();
+		}
+		
+		private void send(Channel ch)
+		{
+			if(!running)
+				return;
+			
+			ThreadLocalRandom r = ThreadLocalRandom.current();
+			
+			int i = Arrays.binarySearch(weights,r.nextInt(weights[weights.length-1])+1);
+			Frame f = frames.get(i<0?-i-1:i);
+			
+			if(cag.getLdCorrupt() > 0 && r.nextDouble() < cag.getLdCorrupt())
+				write(ch,garbage.retainedSlice(0,1+r.nextInt(garbage.capacity())));
+			
+			pending.offer(new Pending(f,System.nanoTime()));
+			write(ch,f.data.retainedDuplicate());
+			
+			sent.increment();
+		}
+		
+		//writes in pieces of cag.ldSplit, each flushed on its own
+		private void write(Channel ch, ByteBuf buf)
+		{
+			written.add(buf.readableBytes());
+			
+			int s = (int)cag.getLdSplit().toBytes();
+			if(s <= 0)
+			{
+				ch.write(buf,ch.voidPromise());
+				
+				return;
+			}
+			
+			while(buf.readableBytes() > s)
+				ch.writeAndFlush(buf.readRetainedSlice(s),ch.voidPromise());
+			ch.writeAndFlush(buf,ch.voidPromise());
+		}
+	}
+}
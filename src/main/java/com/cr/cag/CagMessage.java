@@ -0,0 +1,28 @@
+package com.cr.cag;
+
+import org.bson.conversions.Bson;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class CagMessage
+{
+	//Document or RawBsonDocument
+	private final Bson body;
+	private final int size;
+	//System.nanoTime() of the read completing the frame
+	private final long received;
+	//appended to the collection name, CagLarge.CHUNKS or FILES
+	private final String suffix;
+	//CagDedup digest of the frame, null when not checked
+	private final CagDedup.Key key;
+	//System.nanoTime() when decoded
+	private final long decoded = System.nanoTime();
+	
+	public CagMessage(Bson body, int size, long received)
+	{
+		this(body,size,received,"",null);
+	}
+}
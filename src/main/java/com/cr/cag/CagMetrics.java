@@ -0,0 +1,50 @@
+package com.cr.cag;
+
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+
+//recorded on the hot path: lock-free, allocation-free
+@Component
+@Getter
+public class CagMetrics
+{
+	//ns
+	private final CagHistogram decode = new CagHistogram();
+	private final CagHistogram frame = new CagHistogram();
+	//ns
+	private final CagHistogram queue = new CagHistogram();
+	//ns
+	private final CagHistogram insert = new CagHistogram();
+	private final CagHistogram batch = new CagHistogram();
+	private final CagHistogram batchBytes = new CagHistogram();
+	//ns from receiving to acknowledged by MongoDB, and its stages
+	private final CagHistogram latency = new CagHistogram();
+	private final CagHistogram latencyDecode = new CagHistogram();
+	private final CagHistogram latencyInsert = new CagHistogram();
+	
+	public void decoded(long time, int size)
+	{
+		decode.record(time);
+		frame.record(size);
+	}
+	
+	public void queued(long time)
+	{
+		queue.record(time);
+	}
+	
+	public void inserted(long time, int messages, long bytes)
+	{
+		insert.record(time);
+		batch.record(messages);
+		batchBytes.record(bytes);
+	}
+	
+	public void persisted(CagMessage msg, long taken, long time)
+	{
+		latency.record(time-msg.getReceived());
+		latencyDecode.record(msg.getDecoded()-msg.getReceived());
+		latencyInsert.record(time-taken);
+	}
+}
@@ -1,27 +1,69 @@
 package com.cr.cag;
 
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.mongo.MongoProperties;
+import org.springframework.boot.autoconfigure.mongo.ReactiveMongoClientFactory;
+import org.springframework.core.env.Environment;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.util.unit.DataSize;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
 import com.mongodb.WriteConcern;
-import com.mongodb.client.MongoCollection;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.InsertManyResult;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -29,6 +71,18 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class CagMongo
 {
+	private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+	private static final DateTimeFormatter HOUR = DateTimeFormatter.ofPattern("yyyyMMddHH");
+	
+	//ns the boss waits for batches in flight to return bytes under mgInFlightBytes
+	private static final long IDLE = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	private static final int DUPLICATE_KEY = 11000;
+	private static final int TOO_LARGE = 10334;
+	//HostUnreachable, HostNotFound, NetworkTimeout, ShutdownInProgress, PrimarySteppedDown, ExceededTimeLimit, SocketException,
+	//NotMaster, InterruptedAtShutdown, InterruptedDueToReplStateChange, NotMasterNoSlaveOk, NotMasterOrSecondary
+	private static final Set<Integer> TRANSIENT = new HashSet<>(Arrays.asList(6,7,89,91,189,262,9001,10107,11600,11602,13435,13436));
+	
 	@Autowired
 	private CagProperties cag;
 	
@@ -38,13 +92,64 @@ public class CagMongo
 	@Autowired
 	private ThreadPoolTaskExecutor executor;
 	
-	private LinkedBlockingQueue<List<Document>> list = new LinkedBlockingQueue<>();
-	private Queue<Document> queue = new ConcurrentLinkedQueue<>();
-	private Semaphore semaphore = new Semaphore(0);
+	@Autowired
+	private CagSpool spool;
+	
+	@Autowired
+	private CagMetrics metrics;
+	
+	@Autowired
+	private CagReject reject;
+	
+	@Autowired
+	private MongoProperties properties;
+	
+	@Autowired
+	private Environment environment;
+	
+	//mgSink reactive: the same database through the reactive streams driver, on a client of its own
+	private MongoClient client;
+	private MongoDatabase database;
 	
+	private LinkedBlockingQueue<List<CagMessage>> list = new LinkedBlockingQueue<>();
+	private CagRing<CagMessage> ring;
+	//the boss parked on an empty ring, unparked by the next offer
+	private AtomicReference<Thread> waiting = new AtomicReference<>();
+	
+	//mgAffine: the batch of each event loop, finished batches waiting for a worker list
+	private FastThreadLocal<Local> local = new FastThreadLocal<Local>()
+	{
+		@Override
+		protected Local initialValue()
+		{
+			return new Local();
+		}
+	};
+	private Queue<Local> ready = new ConcurrentLinkedQueue<>();
+	
+	private LongAdder depth = new LongAdder();
 	private LongAdder stock = new LongAdder();
 	private LongAdder saved = new LongAdder();
 	private LongAdder failure = new LongAdder();
+	private LongAdder spooled = new LongAdder();
+	//bytes of batches being inserted, bounded by mgInFlightBytes
+	private AtomicLong inflight = new AtomicLong();
+	
+	private volatile boolean down;
+	
+	//adapted between mgBatchMin and mgBatch, 1 and mgWorkers (mgInFlight with the reactive sink or virtual threads)
+	private volatile int batch;
+	private int workers;
+	//worker lists held back while workers < slots(), surplus: lists to hold back when returned
+	private Deque<List<CagMessage>> parked = new ArrayDeque<>();
+	private int surplus;
+	private LongAdder inserts = new LongAdder();
+	private LongAdder insertTime = new LongAdder();
+	//failed or retried inserts, taken as slow ones
+	private LongAdder slow = new LongAdder();
+	private long[] observed = new long[4];
+	
+	private volatile Partition partition = new Partition(0L,0L,null);
 	
 	@PostConstruct
 	public void startup()
@@ -53,28 +158,233 @@ public class CagMongo
 		{
 			mongo.collectionExists(cag.getMgCollection());
 			
-			for(int w=cag.getMgWorkers();w>0;w--)
-				list.offer(new ArrayList<>());
+			if("ttl".equals(cag.getMgRetention()))
+				ttl();
 			
-			executor.execute(this::boss);
-			
-			log.info("cag-mongo ready");
+			if(cag.getDcLargeSize().toBytes() > 0 && !partitioned())
+				chunks(cag.getMgCollection());
 		}
 		catch(Exception e)
 		{
-			log.error("cag-mongo connecting failure",e);
+			if(!spool.enabled())
+			{
+				log.error("cag-mongo connecting failure",e);
+				
+				System.exit(-1);
+			}
+			
+			log.warn("cag-mongo connecting failure, spooling",e);
 			
-			System.exit(-1);
+			down = true;
 		}
+		
+		if(reactive() && database == null)
+		{
+			client = new ReactiveMongoClientFactory(properties,environment,Collections.emptyList()).createMongoClient(MongoClientSettings.builder().build());
+			database = client.getDatabase(mongo.getDb().getName());
+		}
+		
+		for(int w=slots();w>0;w--)
+			list.offer(new ArrayList<>());
+		
+		ring = new CagRing<>(cag.getMgRing());
+		
+		batch = (int)cag.getMgBatch().toKilobytes();
+		workers = slots();
+		
+		//mgAffine: batches are dispatched by the event loops, a boss would hold a worker list for nothing
+		if(!cag.isMgAffine())
+			executor.execute(this::boss);
+		if(spool.enabled())
+			executor.execute(this::replay);
+		
+		log.info("cag-mongo ready: {collection: {}, retention: {}, sink: {}, virtual: {}}",collection(),cag.getMgRetention(),cag.getMgSink(),cag.isMgVirtual());
 	}
 	
-	public void offer(Document msg)
+	//batches in flight get up to mgDelay to complete before the client closes
+	@PreDestroy
+	public void shutdown() throws InterruptedException
 	{
-		queue.offer(msg);
+		if(client == null)
+			return;
+		
+		for(long t=System.currentTimeMillis()+cag.getMgDelay().toMillis();inflight.get()>0&&System.currentTimeMillis()<t;)
+			Thread.sleep(10);
+		
+		client.close();
+	}
+	
+	private boolean reactive()
+	{
+		return "reactive".equals(cag.getMgSink());
+	}
+	
+	//worker lists: threads inserting at once, or batches in flight with the reactive sink or virtual threads
+	private int slots()
+	{
+		return reactive()||cag.isMgVirtual()?cag.getMgInFlight():cag.getMgWorkers();
+	}
+	
+	public void offer(CagMessage msg)
+	{
+		int s = msg.getSize();
+		
+		if(spool.enabled() && (down || cag.getMgSpoolStock().toBytes() > 0 && stock.sum() >= cag.getMgSpoolStock().toBytes()) && spool(msg))
+			return;
+		
+		//full although CagServer pauses reading past the high mark: spooled when enabled, otherwise rejected, the event loop never waits
+		if(!ring.offer(msg))
+		{
+			if(spool.enabled() && spool(msg))
+				return;
+			
+			failure.add(1L);
+			reject(msg.getBody(),"ring full");
+			
+			return;
+		}
+		depth.add(1L);
+		
+		if(waiting.get() != null)
+		{
+			Thread t = waiting.getAndSet(null);
+			if(t != null)
+				LockSupport.unpark(t);
+		}
+		
+		stock.add(s);
+	}
+	
+	//on the event loop of a connection, batched there with mgAffine instead of by the boss
+	public void offer(CagMessage msg, EventExecutor loop)
+	{
+		if(!cag.isMgAffine())
+		{
+			offer(msg);
+			
+			return;
+		}
+		
+		int s = msg.getSize();
+		
+		if(spool.enabled() && (down || cag.getMgSpoolStock().toBytes() > 0 && stock.sum() >= cag.getMgSpoolStock().toBytes()) && spool(msg))
+			return;
+		
+		Local l = local.get();
+		l.messages.add(msg);
+		l.bytes += s;
+		depth.add(1L);
 		
-		int s = msg.getInteger("size");
-		semaphore.release((s+1024-1)>>10);
 		stock.add(s);
+		
+		if(l.bytes >= batch*1024L)
+			flush(l);
+		else if(l.timer == null)
+			l.timer = loop.schedule(()->flush(l),cag.getMgDelay().toNanos(),TimeUnit.NANOSECONDS);
+	}
+	
+	//on the event loop of l
+	private void flush(Local l)
+	{
+		if(l.timer != null)
+		{
+			l.timer.cancel(false);
+			l.timer = null;
+		}
+		
+		if(l.messages.isEmpty())
+			return;
+		
+		Local b = new Local();
+		b.messages = l.messages;
+		b.bytes = l.bytes;
+		l.messages = new ArrayList<>();
+		l.bytes = 0;
+		
+		ready.offer(b);
+		dispatch();
+	}
+	
+	//a batch is offered before a list is taken and a list released before a batch is taken, neither waits unseen
+	private void dispatch()
+	{
+		while(!ready.isEmpty())
+		{
+			List<CagMessage> l = list.poll();
+			if(l == null)
+				return;
+			
+			Local b = ready.poll();
+			if(b == null)
+			{
+				release(l);
+				
+				continue;
+			}
+			
+			//offered again, dispatched when a batch in flight completes, or now if none is left
+			if(!admit(b.bytes))
+			{
+				ready.offer(b);
+				release(l);
+				
+				if(inflight.get() > 0)
+					return;
+				
+				continue;
+			}
+			
+			l.addAll(b.messages);
+			
+			long n = System.nanoTime();
+			for(CagMessage m : l)
+				metrics.queued(n-m.getDecoded());
+			depth.add(-l.size());
+			
+			submit(l,b.bytes,n);
+		}
+	}
+	
+	//false when the batch would pass mgInFlightBytes, a batch is always admitted when none is in flight
+	private boolean admit(int bytes)
+	{
+		long c = cag.getMgInFlightBytes().toBytes();
+		
+		while(true)
+		{
+			long i = inflight.get();
+			if(c > 0 && i > 0 && i+bytes > c)
+				return false;
+			
+			if(inflight.compareAndSet(i,i+bytes))
+				return true;
+		}
+	}
+	
+	private void submit(List<CagMessage> msg, int batch, long taken)
+	{
+		//large frames, and failures to retry, spool or reject, go to the blocking worker
+		if(database != null && msg.stream().allMatch(m->m.getSuffix().isEmpty()))
+			insert(msg,batch,taken);
+		else
+			executor.execute(()->worker(msg,batch,taken));
+	}
+	
+	private boolean spool(CagMessage msg)
+	{
+		try
+		{
+			spool.write(msg.getBody());
+			spooled.add(1L);
+			
+			return true;
+		}
+		catch(Exception e)
+		{
+			log.warn("cag-spool writing failure: {}",CagUtil.toString(msg),e);
+			
+			return false;
+		}
 	}
 	
 	private void boss()
@@ -83,33 +393,50 @@ public class CagMongo
 		{
 			try
 			{
-				List<Document> l = list.take();
-				
-				int kb = (int)cag.getMgBatch().toKilobytes();
-				if(!semaphore.tryAcquire(kb,cag.getMgDelay().getSeconds(),TimeUnit.SECONDS))
-				{
-					kb = Math.min(kb,semaphore.availablePermits());
-					if(kb > 0)
-						semaphore.acquire(kb);
-					else
-						continue;
-				}
+				List<CagMessage> l = list.take();
 				
+				//drains as messages arrive, until a batch is full or mgDelay passes with some
+				long kb = batch*1024L;
+				long d = System.nanoTime()+cag.getMgDelay().toNanos();
 				int b = 0;
-				while(kb > 0)
+				while(true)
 				{
-					Document m = queue.poll();
+					b += ring.drain(l,CagMessage::getSize,kb-b);
+					
+					if(b >= kb)
+						break;
 					
-					l.add(m);
+					long n = System.nanoTime();
+					if(n-d >= 0)
+					{
+						if(!l.isEmpty())
+							break;
+						
+						d = n+cag.getMgDelay().toNanos();
+					}
 					
-					int s = m.getInteger("size");
-					b += s;
-					kb -= (s+1024-1)>>10;
+					//an offer publishing after the check sees waiting
+					waiting.set(Thread.currentThread());
+					if(ring.isEmpty())
+						LockSupport.parkNanos(d-n);
+					waiting.set(null);
+					if(Thread.interrupted())
+						throw new InterruptedException();
 				}
-				semaphore.acquire(-kb);
 				
-				int _b = b;
-				executor.execute(()->worker(l,_b));
+				while(!admit(b))
+				{
+					LockSupport.parkNanos(IDLE);
+					if(Thread.interrupted())
+						throw new InterruptedException();
+				}
+				
+				long n = System.nanoTime();
+				for(CagMessage m : l)
+					metrics.queued(n-m.getDecoded());
+				depth.add(-l.size());
+				
+				submit(l,b,n);
 			}
 			catch(InterruptedException e)
 			{
@@ -118,89 +445,623 @@ public class CagMongo
 		}
 	}
 	
-	private void worker(List<Document> msg, int batch)
+	//taken: System.nanoTime() when the batch was taken from the queue
+	private void worker(List<CagMessage> msg, int batch, long taken)
 	{
 		long t = System.currentTimeMillis();
 		int b = batch;
 		int f = 0;
+		int k = 0;
 		
-		MongoCollection<Document> c = null;
 		try
 		{
-			if(c == null)
-				c = mongo.getDb().getCollection(cag.getMgCollection());
+			//large frames add their chunks and files, inserted into collections of their own
+			Map<String,List<CagMessage>> g = msg.stream().allMatch(m->m.getSuffix().isEmpty())?Collections.singletonMap("",msg):msg.stream().collect(Collectors.groupingBy(CagMessage::getSuffix,LinkedHashMap::new,Collectors.toList()));
 			
-			c.insertMany(msg);
-		}
-		catch(Exception e)
-		{
-			for(Document m : msg)
+			for(String u : g.keySet())
 			{
-				try
+				List<CagMessage> l = g.get(u);
+				for(int r=0;!l.isEmpty();r++)
 				{
-					if(c == null)
-						c = mongo.getDb().getCollection(cag.getMgCollection());
+					List<CagMessage> retry = new ArrayList<>();
+					long n = System.nanoTime();
 					
-					c.insertOne(m);
-				}
-				catch(Exception ex)
-				{
-					b -= m.getInteger("size");
-					f ++;
+					try
+					{
+						insertMany(u,l.stream().map(CagMessage::getBody).collect(Collectors.toList()),new InsertManyOptions().ordered(false));
+						
+						long e = System.nanoTime();
+						metrics.inserted(e-n,l.size(),l==msg?batch:l.stream().mapToLong(CagMessage::getSize).sum());
+						inserts.add(1L);
+						insertTime.add(e-n);
+						for(CagMessage m : l)
+							metrics.persisted(m,taken,e);
+					}
+					catch(MongoBulkWriteException e)
+					{
+						//unordered: documents without an error are saved
+						if(e.getWriteErrors().stream().anyMatch(x->x.getCode()!=DUPLICATE_KEY))
+							slow.add(1L);
+						
+						boolean[] w = new boolean[l.size()];
+						for(BulkWriteError x : e.getWriteErrors())
+						{
+							CagMessage m = l.get(x.getIndex());
+							
+							//saved by an earlier attempt
+							if(x.getCode() == DUPLICATE_KEY)
+								continue;
+							
+							w[x.getIndex()] = true;
+							
+							if(TRANSIENT.contains(x.getCode()) && r < cag.getMgRetries())
+								retry.add(m);
+							else
+							{
+								b -= m.getSize();
+								f ++;
+								
+								reject(m.getBody(),x.getCode()==TOO_LARGE?"too large":x.getCode()+" "+x.getMessage());
+							}
+						}
+						
+						long t1 = System.nanoTime();
+						for(int i=0;i<w.length;i++)
+							if(!w[i])
+								metrics.persisted(l.get(i),taken,t1);
+					}
+					catch(Exception e)
+					{
+						slow.add(1L);
+						
+						if(!retryable(e))
+						{
+							log.warn("cag-mongo saving failure, inserting one by one: {list: {}}",CagUtil.toString(l.size()),e);
+							
+							for(CagMessage m : l)
+							{
+								try
+								{
+									insertOne(u,m.getBody());
+									metrics.persisted(m,taken,System.nanoTime());
+								}
+								catch(Exception ex)
+								{
+									if(ex instanceof MongoException && ((MongoException)ex).getCode() == DUPLICATE_KEY)
+										continue;
+									
+									b -= m.getSize();
+									f ++;
+									
+									reject(m.getBody(),ex);
+								}
+							}
+						}
+						else if(spool.enabled())
+						{
+							log.warn("cag-mongo saving failure, spooling: {list: {}}",CagUtil.toString(l.size()),e);
+							
+							down = true;
+							
+							for(CagMessage m : l)
+							{
+								b -= m.getSize();
+								
+								if(spool(m))
+									k ++;
+								else
+									f ++;
+							}
+						}
+						else if(r < cag.getMgRetries())
+						{
+							log.warn("cag-mongo saving failure, retrying: {list: {}, retry: {}}",CagUtil.toString(l.size()),r+1,e);
+							
+							retry = l;
+						}
+						else
+						{
+							for(CagMessage m : l)
+							{
+								b -= m.getSize();
+								f ++;
+								
+								reject(m.getBody(),e);
+							}
+						}
+					}
 					
-					log.warn("cag-mongo saving failuer: {}",CagUtil.toString(m),ex);
+					l = retry;
+					if(!l.isEmpty())
+						Thread.sleep(1000L<<r);
 				}
 			}
 		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
 		finally
 		{
-			int s = msg.size()-f;
+			finish(msg,batch,b,f,k,t);
+		}
+	}
+	
+	//the batch insertMany'd by the reactive driver, completed on its threads
+	@SuppressWarnings("unchecked")
+	private void insert(List<CagMessage> msg, int batch, long taken)
+	{
+		long t = System.currentTimeMillis();
+		long n = System.nanoTime();
+		
+		Subscriber<InsertManyResult> s = new Subscriber<InsertManyResult>()
+		{
+			@Override
+			public void onSubscribe(Subscription s)
+			{
+				s.request(1L);
+			}
 			
-			msg.clear();
-			list.offer(msg);
+			@Override
+			public void onNext(InsertManyResult r)
+			{
+			}
+			
+			@Override
+			public void onError(Throwable e)
+			{
+				//inserted again by the worker, the documents saved here being duplicates
+				slow.add(1L);
+				log.warn("cag-mongo saving failure, saving synchronously: {list: {}}",CagUtil.toString(msg.size()),e);
+				
+				executor.execute(()->worker(msg,batch,taken));
+			}
 			
-			stock.add(-batch);
+			@Override
+			public void onComplete()
+			{
+				long e = System.nanoTime();
+				metrics.inserted(e-n,msg.size(),batch);
+				inserts.add(1L);
+				insertTime.add(e-n);
+				for(CagMessage m : msg)
+					metrics.persisted(m,taken,e);
+				
+				finish(msg,batch,batch,0,0,t);
+			}
+		};
+		
+		List<Bson> d = msg.stream().map(CagMessage::getBody).collect(Collectors.toList());
+		InsertManyOptions o = new InsertManyOptions().ordered(false);
+		if(d.get(0) instanceof RawBsonDocument)
+			database.getCollection(collection(),RawBsonDocument.class).insertMany((List<RawBsonDocument>)(List<?>)d,o).subscribe(s);
+		else
+			database.getCollection(collection()).insertMany((List<Document>)(List<?>)d,o).subscribe(s);
+	}
+	
+	//b: bytes saved, f: failed, k: spooled, t: System.currentTimeMillis() when the insert started
+	private void finish(List<CagMessage> msg, int batch, int b, int f, int k, long t)
+	{
+		int s = msg.size()-f-k;
+		
+		msg.clear();
+		release(msg);
+		inflight.addAndGet(-batch);
+		
+		if(cag.isMgAffine())
+			dispatch();
+		
+		stock.add(-batch);
+		
+		saved.add(s);
+		failure.add(f);
+		
+		if(s > 0)
+		{
+			String _l = CagUtil.toString(s);
+			String _b = CagUtil.toString(DataSize.ofBytes(b));
+			String _t = CagUtil.toString(System.currentTimeMillis()-t," ms");
+			String _q = CagUtil.toString(depth.sum());
+			String _s = CagUtil.toString(DataSize.ofBytes(stock.sum()));
+			
+			if(f == 0)
+				log.info("cag-mongo saved: {list: {}, batch: {}, time: {}, queue: {}, stock: {}}",_l,_b,_t,_q,_s);
+			else
+				log.warn("cag-mongo saved: {loop: {}, batch: {}, time: {}, queue: {}, stock: {}}",_l,_b,_t,_q,_s);
+		}
+	}
+	
+	private synchronized void release(List<CagMessage> msg)
+	{
+		if(surplus > 0)
+		{
+			surplus --;
+			parked.push(msg);
+		}
+		else
+			list.offer(msg);
+	}
+	
+	//AIMD toward mgInsertTime: halves the batch on slow or failed inserts, grows it by mgBatchMin while the stock grows
+	@Scheduled(fixedDelay=1000L)
+	private synchronized void adapt()
+	{
+		long target = cag.getMgInsertTime().toNanos();
+		if(target <= 0)
+			return;
+		
+		long[] o = {inserts.sum(),insertTime.sum(),stock.sum(),slow.sum()};
+		long[] l = observed;
+		observed = o;
+		
+		//nothing finished, mongod may be stuck: held
+		long n = o[0]-l[0];
+		long f = o[3]-l[3];
+		if(n == 0 && f == 0)
+			return;
+		
+		long t = n>0?(o[1]-l[1])/n:0L;
+		boolean growing = o[2] > l[2] && o[2] > 0;
+		
+		int max = (int)cag.getMgBatch().toKilobytes();
+		int min = (int)Math.min(cag.getMgBatchMin().toKilobytes(),max);
+		int b = batch;
+		int w = workers;
+		
+		String reason;
+		if(f > 0 || t > target)
+		{
+			reason = f>0?"failing":"slow";
 			
-			saved.add(s);
-			failure.add(f);
+			if(b > min)
+				b = Math.max(b/2,min);
+			else if(w > 1)
+				w --;
+		}
+		else if(growing)
+		{
+			reason = "growing";
 			
-			if(s > 0)
+			if(b < max)
+				b = Math.min(b+min,max);
+			else if(w < slots())
+				w ++;
+		}
+		else
+			return;
+		
+		if(b == batch && w == workers)
+			return;
+		
+		for(;w<workers;workers--)
+			surplus ++;
+		for(;w>workers;workers++)
+		{
+			if(surplus > 0)
+				surplus --;
+			else
+				list.offer(parked.pop());
+		}
+		batch = b;
+		
+		String _b = CagUtil.toString(DataSize.ofKilobytes(b));
+		String _t = CagUtil.toString(TimeUnit.NANOSECONDS.toMillis(t)," ms");
+		String _s = CagUtil.toString(DataSize.ofBytes(o[2]));
+		
+		log.info("cag-mongo adapted: {reason: {}, batch: {}, workers: {}, insert: {}, stock: {}}",reason,_b,w,_t,_s);
+	}
+	
+	public int batch()
+	{
+		return batch;
+	}
+	
+	public synchronized int workers()
+	{
+		return workers;
+	}
+	
+	public long inflight()
+	{
+		return inflight.get();
+	}
+	
+	private void reject(Bson msg, Object reason)
+	{
+		log.warn("cag-mongo rejected: {reason: {}, message: {}}",reason,CagUtil.toString(msg));
+		
+		if(reject.enabled())
+		{
+			try
+			{
+				reject.write(msg);
+			}
+			catch(Exception e)
 			{
-				String _l = CagUtil.toString(s);
-				String _b = CagUtil.toString(DataSize.ofBytes(b));
+				log.warn("cag-reject writing failure",e);
+			}
+		}
+	}
+	
+	//network, election and shutdown errors, worth retrying the same documents
+	private static boolean retryable(Exception e)
+	{
+		return e instanceof MongoSocketException || e instanceof MongoTimeoutException
+				|| e instanceof MongoNotPrimaryException || e instanceof MongoNodeIsRecoveringException
+				|| e instanceof MongoException && TRANSIENT.contains(((MongoException)e).getCode());
+	}
+	
+	//suffix: "" for mgCollection, CagLarge.CHUNKS or FILES
+	@SuppressWarnings("unchecked")
+	private void insertMany(String suffix, List<? extends Bson> msg, InsertManyOptions options)
+	{
+		if(msg.get(0) instanceof RawBsonDocument)
+			mongo.getDb().getCollection(collection()+suffix,RawBsonDocument.class).insertMany((List<RawBsonDocument>)msg,options);
+		else
+			mongo.getDb().getCollection(collection()+suffix).insertMany((List<Document>)msg,options);
+	}
+	
+	private void insertOne(String suffix, Bson msg)
+	{
+		if(msg instanceof RawBsonDocument)
+			mongo.getDb().getCollection(collection()+suffix,RawBsonDocument.class).insertOne((RawBsonDocument)msg);
+		else
+			mongo.getDb().getCollection(collection()+suffix).insertOne((Document)msg);
+	}
+	
+	//the spool keeps documents only, chunks and files are told by their fields
+	private static String suffix(RawBsonDocument msg)
+	{
+		if(msg.containsKey("files_id"))
+			return CagLarge.CHUNKS;
+		if(msg.containsKey("chunkSize"))
+			return CagLarge.FILES;
+		
+		return "";
+	}
+	
+	private void replay()
+	{
+		while(true)
+		{
+			try
+			{
+				List<RawBsonDocument> l = spool.read(cag.getMgBatch().toBytes());
+				if(l.isEmpty())
+				{
+					Thread.sleep(1000L);
+					continue;
+				}
+				
+				long t = System.currentTimeMillis();
+				int f = 0;
+				for(Map.Entry<String,List<RawBsonDocument>> x : l.stream().collect(Collectors.groupingBy(CagMongo::suffix,LinkedHashMap::new,Collectors.toList())).entrySet())
+				{
+					List<RawBsonDocument> d = x.getValue();
+					try
+					{
+						insertMany(x.getKey(),d,new InsertManyOptions().ordered(false));
+					}
+					catch(MongoBulkWriteException e)
+					{
+						//not committed, replayed again with the saved ones as duplicates
+						if(e.getWriteErrors().stream().anyMatch(w->TRANSIENT.contains(w.getCode())))
+							throw e;
+						
+						for(BulkWriteError w : e.getWriteErrors())
+						{
+							if(w.getCode() != DUPLICATE_KEY)
+							{
+								f ++;
+								
+								reject(d.get(w.getIndex()),w.getCode()==TOO_LARGE?"too large":w.getCode()+" "+w.getMessage());
+							}
+						}
+					}
+				}
+				
+				spool.commit();
+				down = false;
+				
+				saved.add(l.size()-f);
+				failure.add(f);
+				
+				String _l = CagUtil.toString(l.size());
 				String _t = CagUtil.toString(System.currentTimeMillis()-t," ms");
-				String _q = CagUtil.toString(queue.size());
-				String _s = CagUtil.toString(DataSize.ofBytes(stock.sum()));
+				String _p = CagUtil.toString(DataSize.ofBytes(spool.pending()));
 				
-				if(f == 0)
-					log.info("cag-mongo saved: {list: {}, batch: {}, time: {}, queue: {}, stock: {}}",_l,_b,_t,_q,_s);
-				else
-					log.warn("cag-mongo saved: {loop: {}, batch: {}, time: {}, queue: {}, stock: {}}",_l,_b,_t,_q,_s);
+				log.info("cag-spool replayed: {list: {}, time: {}, pending: {}}",_l,_t,_p);
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+			catch(Exception e)
+			{
+				log.warn("cag-spool replaying failure",e);
+				
+				down = true;
+				
+				try
+				{
+					Thread.sleep(cag.getMgDelay().toMillis());
+				}
+				catch(InterruptedException ex)
+				{
+					return;
+				}
 			}
 		}
 	}
 	
+	public long queue()
+	{
+		return depth.sum();
+	}
+	
+	public long stock()
+	{
+		return stock.sum();
+	}
+	
+	//messages in the ring, 0 with mgAffine
+	public int ring()
+	{
+		return ring.size();
+	}
+	
 	public long saved()
 	{
-		return saved.sumThenReset();
+		return saved.sum();
 	}
 	
 	public long failure()
 	{
-		return failure.sumThenReset();
+		return failure.sum();
+	}
+	
+	public long spooled()
+	{
+		return spooled.sum();
+	}
+	
+	public long pending()
+	{
+		return spool.enabled()?spool.pending():0L;
+	}
+	
+	//mgCollection, or its partition of the current day or hour
+	private String collection()
+	{
+		if(!partitioned())
+			return cag.getMgCollection();
+		
+		Partition p = partition;
+		long t = System.currentTimeMillis();
+		if(t < p.start || t >= p.end)
+		{
+			partition = p = partition(t);
+			
+			if(cag.getDcLargeSize().toBytes() > 0)
+			{
+				try
+				{
+					chunks(p.name);
+				}
+				catch(Exception e)
+				{
+					log.warn("cag-mongo indexing failure: {}",p.name+CagLarge.CHUNKS,e);
+				}
+			}
+		}
+		
+		return p.name;
+	}
+	
+	private boolean partitioned()
+	{
+		return "day".equals(cag.getMgRetention()) || "hour".equals(cag.getMgRetention());
+	}
+	
+	private Partition partition(long time)
+	{
+		boolean h = "hour".equals(cag.getMgRetention());
+		
+		ZonedDateTime s = Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).truncatedTo(h?ChronoUnit.HOURS:ChronoUnit.DAYS);
+		ZonedDateTime e = h?s.plusHours(1):s.plusDays(1);
+		
+		return new Partition(s.toInstant().toEpochMilli(),e.toInstant().toEpochMilli(),cag.getMgCollection()+"_"+s.format(h?HOUR:DAY));
+	}
+	
+	private void ttl()
+	{
+		long c = cag.getMgClean().getSeconds();
+		if(c <= 0)
+			return;
+		
+		ttl(cag.getMgCollection(),"insertTime",c);
+		if(cag.getDcLargeSize().toBytes() > 0)
+		{
+			ttl(cag.getMgCollection()+CagLarge.FILES,"uploadDate",c);
+			ttl(cag.getMgCollection()+CagLarge.CHUNKS,"uploadDate",c);
+		}
+		
+		log.info("cag-mongo ttl: {collection: {}, expire: {}}",cag.getMgCollection(),cag.getMgClean());
+	}
+	
+	private void ttl(String collection, String field, long seconds)
+	{
+		try
+		{
+			mongo.getDb().getCollection(collection).createIndex(Indexes.ascending(field),new IndexOptions().expireAfter(seconds,TimeUnit.SECONDS));
+		}
+		catch(MongoCommandException e)
+		{
+			//IndexOptionsConflict: the index exists with another expiry
+			if(e.getErrorCode() != 85)
+				throw e;
+			
+			Document i = new Document("keyPattern",new Document(field,1)).append("expireAfterSeconds",seconds);
+			mongo.getDb().runCommand(new Document("collMod",collection).append("index",i));
+		}
+	}
+	
+	//the GridFS index of chunks, for reading a file in order
+	private void chunks(String collection)
+	{
+		mongo.getDb().getCollection(collection+CagLarge.CHUNKS).createIndex(Indexes.ascending("files_id","n"),new IndexOptions().unique(true));
+	}
+	
+	//whole partitions older than mgClean
+	@Scheduled(cron="0 1 * * * ?")
+	private void drop()
+	{
+		long c = cag.getMgClean().toMillis();
+		if(c > 0 && partitioned())
+		{
+			try
+			{
+				String p = cag.getMgCollection()+"_";
+				String k = partition(System.currentTimeMillis()-c).name;
+				
+				for(String n : mongo.getDb().listCollectionNames())
+				{
+					//with the .files and .chunks of large frames
+					String b = n.endsWith(CagLarge.FILES)||n.endsWith(CagLarge.CHUNKS)?n.substring(0,n.lastIndexOf('.')):n;
+					if(b.startsWith(p) && b.length() == k.length() && b.compareTo(k) < 0 && b.chars().skip(p.length()).allMatch(Character::isDigit))
+					{
+						mongo.getDb().getCollection(n).drop();
+						
+						log.info("cag-mongo dropped: {}",n);
+					}
+				}
+			}
+			catch(Exception e)
+			{
+				log.warn("cag-mongo dropping failure",e);
+			}
+		}
 	}
 	
 	@Scheduled(cron="0 0 0/2 * * ?")
 	private void clean()
 	{
 		long c = cag.getMgClean().toMillis();
-		if(c > 0)
+		if(c > 0 && "delete".equals(cag.getMgRetention()))
 		{
 			try
 			{
-				Document f = new Document("insertTime",new Document("$lt",new Date(System.currentTimeMillis()-c)));
+				Date d = new Date(System.currentTimeMillis()-c);
+				Document f = new Document("insertTime",new Document("$lt",d));
 				mongo.getDb().getCollection(cag.getMgCollection()).withWriteConcern(WriteConcern.UNACKNOWLEDGED).deleteMany(f);
 				
+				if(cag.getDcLargeSize().toBytes() > 0)
+				{
+					Document u = new Document("uploadDate",new Document("$lt",d));
+					mongo.getDb().getCollection(cag.getMgCollection()+CagLarge.FILES).withWriteConcern(WriteConcern.UNACKNOWLEDGED).deleteMany(u);
+					mongo.getDb().getCollection(cag.getMgCollection()+CagLarge.CHUNKS).withWriteConcern(WriteConcern.UNACKNOWLEDGED).deleteMany(u);
+				}
+				
 				log.info("cag-mongo cleaned");
 			}
 			catch(Exception e)
@@ -209,5 +1070,25 @@ public class CagMongo
 			}
 		}
 	}
+	
+	private static class Local
+	{
+		private List<CagMessage> messages = new ArrayList<>();
+		private int bytes;
+		private Future<?> timer;
+	}
+	
+	private static class Partition
+	{
+		private final long start;
+		private final long end;
+		private final String name;
+		
+		private Partition(long start, long end, String name)
+		{
+			this.start = start;
+			this.end = end;
+			this.name = name;
+		}
+	}
 }
-
@@ -2,6 +2,9 @@ package com.cr.cag;
 
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 
@@ -22,13 +25,19 @@ public class CagProperties
 	private String address = "0.0.0.0";
 	private int port = 21339;
 	
+	private String ntTransport = "auto";
 	private int ntBosses = 2;
+	private int ntListeners = 1;
 	private int ntWorkers = 0;
 	@DataSizeUnit(DataUnit.KILOBYTES)
 	private DataSize ntRcvBuf = DataSize.ofKilobytes(64);
 	@DurationUnit(ChronoUnit.SECONDS)
 	private Duration ntIdleTime = Duration.ofSeconds(300);
 	private Set<String> ntIgnoreEx = new ConcurrentSkipListSet<String>();
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize ntDirectHigh = DataSize.ofBytes(0);
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize ntDirectLow = DataSize.ofBytes(0);
 	
 	private int soBackLog = 1024;
 	@DataSizeUnit(DataUnit.KILOBYTES)
@@ -40,13 +49,72 @@ public class CagProperties
 	private DataSize dcMaxSize = DataSize.ofMegabytes(200);
 	private String dcCharset = "UTF-8";
 	private boolean dcIgnoreText = false;
+	private boolean dcRawBson = false;
+	@DurationUnit(ChronoUnit.MILLIS)
+	private Duration dcAckDelay = Duration.ZERO;
+	private String dcReceiveTime = "";
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize dcLargeSize = DataSize.ofBytes(0);
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize dcAccumulate = DataSize.ofBytes(0);
 	
 	private int mgWorkers = 10;
+	private int mgRing = 65536;
+	private boolean mgAffine = false;
+	private String mgSink = "sync";
+	private int mgInFlight = 64;
+	private boolean mgVirtual = false;
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize mgInFlightBytes = DataSize.ofBytes(0);
 	@DataSizeUnit(DataUnit.KILOBYTES)
 	private DataSize mgBatch = DataSize.ofMegabytes(50);
+	@DataSizeUnit(DataUnit.KILOBYTES)
+	private DataSize mgBatchMin = DataSize.ofMegabytes(1);
+	@DurationUnit(ChronoUnit.MILLIS)
+	private Duration mgInsertTime = Duration.ZERO;
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize mgStockHigh = DataSize.ofBytes(0);
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize mgStockLow = DataSize.ofBytes(0);
 	@DurationUnit(ChronoUnit.SECONDS)
 	private Duration mgDelay = Duration.ofSeconds(20);
 	@DurationUnit(ChronoUnit.HOURS)
 	private Duration mgClean = Duration.ofHours(2);
 	private String mgCollection = "COL_HTTPS_ORGINFO";
+	private String mgRetention = "delete";
+	private String mgSpool = "";
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize mgSpoolSegment = DataSize.ofMegabytes(64);
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize mgSpoolStock = DataSize.ofBytes(0);
+	private int mgRetries = 3;
+	private String mgReject = "";
+	@DataSizeUnit(DataUnit.KILOBYTES)
+	private DataSize mgChunkSize = DataSize.ofKilobytes(255);
+	
+	@DurationUnit(ChronoUnit.MINUTES)
+	private Duration ddWindow = Duration.ZERO;
+	private List<String> ddKeys = new ArrayList<>();
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize ddBits = DataSize.ofMegabytes(16);
+	private int ddExact = 1000000;
+	
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize rlConnectionBytes = DataSize.ofBytes(0);
+	private int rlConnectionFrames = 0;
+	@DataSizeUnit(DataUnit.MEGABYTES)
+	private DataSize rlSourceBytes = DataSize.ofBytes(0);
+	private int rlSourceFrames = 0;
+	private Duration rlSourceIdle = Duration.ofHours(1);
+	
+	private String ldHost = "127.0.0.1";
+	private int ldConnections = 16;
+	@DurationUnit(ChronoUnit.SECONDS)
+	private Duration ldDuration = Duration.ofSeconds(60);
+	private List<String> ldSizes = Arrays.asList("1KB");
+	@DataSizeUnit(DataUnit.KILOBYTES)
+	private DataSize ldSplit = DataSize.ofBytes(0);
+	private int ldPipeline = 1;
+	private double ldCorrupt = 0;
+	private String ldReplay = "";
 }
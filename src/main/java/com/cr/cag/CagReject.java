@@ -0,0 +1,75 @@
+package com.cr.cag;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+//documents MongoDB refused, one extended JSON line each (mongoimport)
+@Component
+@Slf4j
+public class CagReject
+{
+	@Autowired
+	private CagProperties cag;
+	
+	private File dir;
+	private String day;
+	private Writer writer;
+	
+	@PostConstruct
+	private void init() throws IOException
+	{
+		if(!enabled())
+			return;
+		
+		dir = new File(cag.getMgReject());
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create reject directory: "+dir);
+	}
+	
+	@PreDestroy
+	private synchronized void close() throws IOException
+	{
+		if(writer != null)
+			writer.close();
+		writer = null;
+	}
+	
+	public boolean enabled()
+	{
+		return !cag.getMgReject().isEmpty();
+	}
+	
+	public synchronized void write(Bson msg) throws IOException
+	{
+		String d = LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE);
+		if(!d.equals(day))
+		{
+			close();
+			
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir,"reject."+d+".json"),true),StandardCharsets.UTF_8));
+			day = d;
+		}
+		
+		writer.write(msg instanceof RawBsonDocument?((RawBsonDocument)msg).toJson():((Document)msg).toJson());
+		writer.write('\n');
+		writer.flush();
+	}
+}
@@ -1,12 +1,17 @@
 package com.cr.cag;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.unit.DataSize;
 
-import io.netty.util.internal.PlatformDependent;
-
 import lombok.extern.slf4j.Slf4j;
 
 @Component
@@ -22,19 +27,154 @@ public class CagReporter
 	@Autowired
 	private CagMongo mongo;
 	
+	@Autowired
+	private CagMetrics metrics;
+	
+	@Autowired
+	private CagDedup dedup;
+	
+	//counters are cumulative, the report logs the change since the last one
+	private long[] last = new long[10];
+	private long[] accepted = new long[0];
+	private long[] latency = new long[0];
+	
 	@Scheduled(cron="0 * * * * ?")
 	private void report()
 	{
-		String _o = CagUtil.toString(server.opened());
-		String _c = CagUtil.toString(server.closed());
+		long[] c = {server.opened(),server.closed(),server.pauses(),server.pausedTime(),decoder.read(),mongo.saved(),mongo.failure(),mongo.spooled(),dedup.checked(),dedup.duplicates()};
+		long[] l = last;
+		last = c;
+		
+		long[] a = server.accepted();
+		long[] p = Arrays.copyOf(accepted,a.length);
+		accepted = a;
+		
+		String _o = CagUtil.toString(c[0]-l[0]);
+		String _c = CagUtil.toString(c[1]-l[1]);
 		String _a = CagUtil.toString(server.active());
-		String _r = CagUtil.toString(DataSize.ofBytes(decoder.read()));
-		String _s = CagUtil.toString(mongo.saved());
-		String _f = CagUtil.toString(mongo.failure());
+		String _l = IntStream.range(0,a.length).mapToLong(i->a[i]-p[i]).mapToObj(CagUtil::toString).collect(Collectors.joining(", ","[","]"));
+		String _p = CagUtil.toString(c[2]-l[2]);
+		String _t = CagUtil.toString(c[3]-l[3]," ms");
+		String _r = CagUtil.toString(DataSize.ofBytes(c[4]-l[4]));
+		String _s = CagUtil.toString(c[5]-l[5]);
+		String _f = CagUtil.toString(c[6]-l[6]);
+		String _k = CagUtil.toString(c[7]-l[7]);
+		String _u = CagUtil.toString(c[9]-l[9])+String.format(" (%.2f%%)",c[8]>l[8]?(c[9]-l[9])*100.0/(c[8]-l[8]):0.0);
+		String _q = CagUtil.toString(DataSize.ofBytes(mongo.pending()));
 		Runtime r = Runtime.getRuntime();
 		String _h = CagUtil.toString(DataSize.ofBytes(r.totalMemory()-r.freeMemory()));
-		String _d = CagUtil.toString(DataSize.ofBytes(PlatformDependent.usedDirectMemory()));
+		String _d = CagUtil.toString(DataSize.ofBytes(CagUtil.usedDirectMemory()));
+		
+		long[] e = metrics.getLatency().snapshot();
+		long[] x = Arrays.copyOf(latency,e.length);
+		latency = e.clone();
+		for(int i=0;i<e.length;i++)
+			e[i] -= x[i];
+		String _5 = CagUtil.toString(TimeUnit.NANOSECONDS.toMillis(CagHistogram.percentile(e,0.5))," ms");
+		String _9 = CagUtil.toString(TimeUnit.NANOSECONDS.toMillis(CagHistogram.percentile(e,0.99))," ms");
+		String _999 = CagUtil.toString(TimeUnit.NANOSECONDS.toMillis(CagHistogram.percentile(e,0.999))," ms");
+		
+		log.info("cag-report: {opened: {}, closed: {}, active: {}, accepted: {}, paused: {}, pausedTime: {}, read: {}, saved: {}, failure: {}, spooled: {}, duplicates: {}, spool: {}, heap: {}, direct: {}, p50: {}, p99: {}, p999: {}}",_o,_c,_a,_l,_p,_t,_r,_s,_f,_k,_u,_q,_h,_d,_5,_9,_999);
+	}
+	
+	//Prometheus text format
+	public String metrics()
+	{
+		StringBuilder sb = new StringBuilder(16*1024);
+		
+		counter(sb,"cag_connections_opened_total","connections opened",server.opened());
+		counter(sb,"cag_connections_closed_total","connections closed",server.closed());
+		gauge(sb,"cag_connections_active","connections open now",server.active());
+		
+		long[] a = server.accepted();
+		sb.append("# HELP cag_accepted_total connections accepted per listener\n# TYPE cag_accepted_total counter\n");
+		for(int i=0;i<a.length;i++)
+			sb.append("cag_accepted_total{listener=\"").append(i).append("\"} ").append(a[i]).append('\n');
+		
+		counter(sb,"cag_paused_total","reads paused by backpressure",server.pauses());
+		counter(sb,"cag_paused_seconds_total","time reads were paused",server.pausedTime()/1e3);
+		counter(sb,"cag_throttled_seconds_total","time reads were paused by the rate limits",server.throttledTime()/1e3);
+		counter(sb,"cag_read_bytes_total","bytes read from connections",decoder.read());
+		counter(sb,"cag_saved_total","messages saved to MongoDB",mongo.saved());
+		counter(sb,"cag_failure_total","messages failed to save",mongo.failure());
+		counter(sb,"cag_spooled_total","messages written to the spool",mongo.spooled());
+		counter(sb,"cag_dedup_checked_total","messages checked for duplicates",dedup.checked());
+		counter(sb,"cag_dedup_duplicates_total","duplicate messages dropped",dedup.duplicates());
+		counter(sb,"cag_dedup_unconfirmed_total","bloom filter hits not found in the exact set",dedup.unconfirmed());
+		gauge(sb,"cag_spool_bytes","bytes waiting in the spool",mongo.pending());
+		gauge(sb,"cag_queue_messages","messages waiting in the queue",mongo.queue());
+		gauge(sb,"cag_stock_bytes","bytes of messages not yet saved",mongo.stock());
+		gauge(sb,"cag_batch_target_bytes","batch size chosen by the controller",mongo.batch()*1024L);
+		gauge(sb,"cag_workers_target","concurrent inserts chosen by the controller",mongo.workers());
+		gauge(sb,"cag_inflight_bytes","bytes of batches being inserted",mongo.inflight());
+		gauge(sb,"cag_direct_bytes","direct memory used by netty",CagUtil.usedDirectMemory());
+		Runtime r = Runtime.getRuntime();
+		gauge(sb,"cag_heap_bytes","heap used",r.totalMemory()-r.freeMemory());
+		
+		histogram(sb,"cag_decode_seconds","time to decode a frame",metrics.getDecode(),10,36,1e-9);
+		histogram(sb,"cag_frame_bytes","frame size",metrics.getFrame(),7,28,1);
+		histogram(sb,"cag_queue_seconds","time from decoding to taken by a batch",metrics.getQueue(),10,36,1e-9);
+		histogram(sb,"cag_insert_seconds","time of insertMany",metrics.getInsert(),16,36,1e-9);
+		histogram(sb,"cag_batch_messages","messages per insertMany",metrics.getBatch(),0,20,1);
+		histogram(sb,"cag_batch_bytes","bytes per insertMany",metrics.getBatchBytes(),10,30,1);
+		histogram(sb,"cag_latency_seconds","time from receiving to acknowledged by MongoDB",metrics.getLatency(),10,38,1e-9);
+		histogram(sb,"cag_latency_decode_seconds","time from receiving to decoded",metrics.getLatencyDecode(),10,36,1e-9);
+		histogram(sb,"cag_latency_insert_seconds","time from taken by a batch to acknowledged by MongoDB",metrics.getLatencyInsert(),10,38,1e-9);
+		
+		return sb.toString();
+	}
+	
+	//ms since startup: {total, decode, queue, insert} x {count, p50, p99, p999, max}
+	public Map<String,Map<String,Object>> latency()
+	{
+		Map<String,Map<String,Object>> m = new LinkedHashMap<>();
+		
+		m.put("total",latency(metrics.getLatency()));
+		m.put("decode",latency(metrics.getLatencyDecode()));
+		m.put("queue",latency(metrics.getQueue()));
+		m.put("insert",latency(metrics.getLatencyInsert()));
+		
+		return m;
+	}
+	
+	private static Map<String,Object> latency(CagHistogram h)
+	{
+		Map<String,Object> m = new LinkedHashMap<>();
+		
+		m.put("count",h.count());
+		m.put("p50",h.percentile(0.5)/1e6);
+		m.put("p99",h.percentile(0.99)/1e6);
+		m.put("p999",h.percentile(0.999)/1e6);
+		m.put("max",h.max()/1e6);
+		
+		return m;
+	}
+	
+	private static void counter(StringBuilder sb, String name, String help, Number value)
+	{
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+	
+	private static void gauge(StringBuilder sb, String name, String help, Number value)
+	{
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+	
+	//buckets of powers of two from 2^from to 2^to, scaled to the base unit
+	private static void histogram(StringBuilder sb, String name, String help, CagHistogram h, int from, int to, double scale)
+	{
+		long c = h.count();
 		
-		log.info("cag-report: {opened: {}, closed: {}, active: {}, read: {}, saved: {}, failure: {}, heap: {}, direct: {}}",_o,_c,_a,_r,_s,_f,_h,_d);
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" histogram\n");
+		for(int i=from;i<=to;i++)
+			sb.append(name).append("_bucket{le=\"").append((1L<<i)*scale).append("\"} ").append(Math.min(h.count(1L<<i),c)).append('\n');
+		sb.append(name).append("_bucket{le=\"+Inf\"} ").append(c).append('\n');
+		sb.append(name).append("_sum ").append(h.sum()*scale).append('\n');
+		sb.append(name).append("_count ").append(c).append('\n');
 	}
 }
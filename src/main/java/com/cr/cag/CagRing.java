@@ -0,0 +1,125 @@
+package com.cr.cag;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+
+//bounded ring of preallocated slots, any thread offers, one thread polls
+//a slot's sequence is its index when free for that lap, index+1 once published
+public class CagRing<E>
+{
+	private final int mask;
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicLongArray sequences;
+	
+	private final AtomicLong tail = new AtomicLong();
+	//only the consumer
+	private long head;
+	//head for the other threads, size() only
+	private final AtomicLong polled = new AtomicLong();
+	
+	public CagRing(int capacity)
+	{
+		int c = Integer.highestOneBit(Math.max(capacity,2)-1)<<1;
+		
+		this.mask = c-1;
+		this.slots = new AtomicReferenceArray<>(c);
+		this.sequences = new AtomicLongArray(c);
+		
+		for(int i=0;i<c;i++)
+			sequences.set(i,i);
+	}
+	
+	public int capacity()
+	{
+		return mask+1;
+	}
+	
+	//false when full
+	public boolean offer(E e)
+	{
+		while(true)
+		{
+			long t = tail.get();
+			int i = (int)t&mask;
+			
+			long s = sequences.get(i);
+			if(s < t)
+				return false;
+			
+			//claimed by another producer since the read of tail
+			if(s > t)
+				continue;
+			
+			//published with a full fence, a consumer checking isEmpty() before it parks is seen by the producer after
+			if(tail.compareAndSet(t,t+1))
+			{
+				slots.lazySet(i,e);
+				sequences.set(i,t+1);
+				
+				return true;
+			}
+		}
+	}
+	
+	//null when empty or the next slot is claimed but not yet published
+	public E poll()
+	{
+		long h = head;
+		int i = (int)h&mask;
+		
+		if(sequences.get(i) != h+1)
+			return null;
+		
+		E e = slots.get(i);
+		slots.lazySet(i,null);
+		sequences.lazySet(i,h+mask+1);
+		head = h+1;
+		polled.lazySet(h+1);
+		
+		return e;
+	}
+	
+	//polls in order until the sizes reach limit, the published slots in one pass, returns the size drained
+	public long drain(Collection<? super E> to, ToIntFunction<? super E> size, long limit)
+	{
+		long h = head;
+		long b = 0;
+		
+		while(b < limit)
+		{
+			int i = (int)h&mask;
+			if(sequences.get(i) != h+1)
+				break;
+			
+			E e = slots.get(i);
+			slots.lazySet(i,null);
+			sequences.lazySet(i,h+mask+1);
+			h ++;
+			
+			to.add(e);
+			b += size.applyAsInt(e);
+		}
+		
+		head = h;
+		polled.lazySet(h);
+		
+		return b;
+	}
+	
+	//any thread, claimed slots included, approximate while offers and polls are under way
+	public int size()
+	{
+		long s = tail.get()-polled.get();
+		
+		return (int)Math.max(0L,Math.min(s,mask+1));
+	}
+	
+	//only the consumer, a slot claimed but not yet published counts as empty
+	public boolean isEmpty()
+	{
+		return sequences.get((int)head&mask) != head+1;
+	}
+}
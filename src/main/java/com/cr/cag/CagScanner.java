@@ -0,0 +1,69 @@
+package com.cr.cag;
+
+import io.netty.buffer.ByteBuf;
+
+//header: [8 zero][int MsgLen][int MsgMaxLen][8][76 zero]
+public class CagScanner
+{
+	//returns the first header from index, a header prefix at the end of the buffer, or -1
+	public static int find(ByteBuf buf, int index, int writer, long max)
+	{
+		int p = index;
+		while(p < writer)
+		{
+			int e = Math.min(p+100,writer);
+			
+			int z = lastNonZero(buf,p+24,e);
+			if(z >= 0)
+			{
+				p = z-24+1;
+				continue;
+			}
+			
+			z = lastNonZero(buf,p,Math.min(p+8,e));
+			if(z >= 0)
+			{
+				p = z+1;
+				continue;
+			}
+			
+			if(e-p < 16)
+				return p;
+			
+			int MsgLen = buf.getIntLE(p+8);
+			int MsgMaxLen = buf.getIntLE(p+12);
+			if(MsgLen < 100 || MsgLen > max || MsgMaxLen < MsgLen)
+			{
+				p ++;
+				continue;
+			}
+			
+			return p;
+		}
+		
+		return -1;
+	}
+	
+	//scans backwards a word at a time
+	private static int lastNonZero(ByteBuf buf, int from, int to)
+	{
+		int i = to;
+		
+		while(i-from >= 8)
+		{
+			long v = buf.getLongLE(i-8);
+			if(v != 0)
+				return i-1-(Long.numberOfLeadingZeros(v)>>3);
+			i -= 8;
+		}
+		
+		while(i > from)
+		{
+			if(buf.getByte(i-1) != 0)
+				return i-1;
+			i --;
+		}
+		
+		return -1;
+	}
+}
@@ -1,17 +1,23 @@
 package com.cr.cag;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBufAllocator;
@@ -21,9 +27,19 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.MultithreadEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import io.netty.util.internal.PlatformDependent;
 
 import lombok.extern.slf4j.Slf4j;
@@ -33,7 +49,8 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class CagServer extends ChannelInboundHandlerAdapter
 {
-	private static final AttributeKey<Long> ALIVE = AttributeKey.valueOf("ALIVE");
+	private static final AttributeKey<CagIdle.Entry> IDLE = AttributeKey.valueOf("IDLE");
+	private static final AttributeKey<Limit> LIMIT = AttributeKey.valueOf("LIMIT");
 	
 	@Autowired
 	private CagProperties cag;
@@ -44,23 +61,49 @@ public class CagServer extends ChannelInboundHandlerAdapter
 	@Autowired
 	private CagDecoder decoder;
 	
-	private NioEventLoopGroup boss;
-	private NioEventLoopGroup worker;
+	@Autowired
+	private CagDedup dedup;
+	
+	private MultithreadEventLoopGroup boss;
+	private MultithreadEventLoopGroup worker;
+	private Class<? extends ServerChannel> channel;
+	private String transport;
+	private List<Acceptor> acceptors = new ArrayList<>();
+	
+	private Map<EventExecutor,CagIdle> idles = new IdentityHashMap<>();
+	private ChannelGroup group = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+	private Map<String,Source> sources = new ConcurrentHashMap<>();
 	
-	private ConcurrentLinkedDeque<ChannelHandlerContext> channels = new ConcurrentLinkedDeque<>();
+	private volatile boolean paused;
+	private long pausedAt;
+	private long pauses;
+	private long pausedTime;
 	
 	private LongAdder opened = new LongAdder();
 	private LongAdder closed = new LongAdder();
 	private LongAdder active = new LongAdder();
+	private LongAdder throttled = new LongAdder();
 	
 	@PostConstruct
 	public void startup()
 	{
-		boss = new NioEventLoopGroup(cag.getNtBosses());
-		worker = new NioEventLoopGroup(cag.getNtWorkers());
+		transport(cag.getNtTransport());
+		
+		//filled before binding, only read by the event loops afterwards
+		long idle = cag.getNtIdleTime().toMillis();
+		if(idle > 0)
+		{
+			for(EventExecutor e : worker)
+			{
+				CagIdle w = new CagIdle(idle,System.currentTimeMillis());
+				idles.put(e,w);
+				
+				e.scheduleAtFixedRate(()->w.expire(System.currentTimeMillis()),w.tick(),w.tick(),TimeUnit.MILLISECONDS);
+			}
+		}
 		
 		ServerBootstrap server = new ServerBootstrap()
-				.channel(NioServerSocketChannel.class)
+				.channel(channel)
 				.option(ChannelOption.RCVBUF_ALLOCATOR,new FixedRecvByteBufAllocator((int)cag.getNtRcvBuf().toBytes()))
 				.option(ChannelOption.SO_BACKLOG,cag.getSoBackLog())
 				.option(ChannelOption.SO_RCVBUF,(int)cag.getSoRcvBuf().toBytes())
@@ -68,26 +111,71 @@ public class CagServer extends ChannelInboundHandlerAdapter
 				.group(boss,worker)
 				.childHandler(this);
 		
-		InetSocketAddress local = new InetSocketAddress(cag.getAddress(),cag.getPort());
-		
-		server.bind(local).addListener(f->
+		int n = cag.getNtListeners();
+		if(n > 1)
 		{
-			Throwable t = f.cause();
-			if(t == null)
-			{
-				log.info("cag-server({}) ready: {boss: {}, worker:{}, allocator: {}, direct: {}}",
-						local,boss.executorCount(),worker.executorCount(),ByteBufAllocator.DEFAULT,PlatformDependent.maxDirectMemory());
-			}
+			if("epoll".equals(transport))
+				server.option(EpollChannelOption.SO_REUSEPORT,true);
 			else
 			{
-				log.error("cag-server({}) binding failure",local,t);
+				log.warn("cag-server listeners require SO_REUSEPORT of epoll transport, fallback to 1");
 				
-				System.exit(-1);
+				n = 1;
 			}
-		});
+		}
+		
+		InetSocketAddress local = new InetSocketAddress(cag.getAddress(),cag.getPort());
+		
+		for(int i=0;i<n;i++)
+		{
+			Acceptor a = new Acceptor();
+			acceptors.add(a);
+			
+			int _i = i;
+			server.clone().handler(a).bind(local).addListener(f->
+			{
+				Throwable t = f.cause();
+				if(t == null)
+				{
+					log.info("cag-server({}) ready: {transport: {}, listener: {}, boss: {}, worker:{}, allocator: {}, direct: {}}",
+							local,transport,_i,boss.executorCount(),worker.executorCount(),ByteBufAllocator.DEFAULT,PlatformDependent.maxDirectMemory());
+				}
+				else
+				{
+					log.error("cag-server({}) binding failure",local,t);
+					
+					System.exit(-1);
+				}
+			});
+		}
 		
-		long it = cag.getNtIdleTime().toMillis()/5;
-		boss.scheduleAtFixedRate(this::closeIdle,it,it,TimeUnit.MILLISECONDS);
+		if(!cag.isMgAffine() || cag.getMgStockHigh().toBytes() > 0 || cag.getNtDirectHigh().toBytes() > 0)
+			boss.scheduleAtFixedRate(this::backpressure,100,100,TimeUnit.MILLISECONDS);
+		if(limited())
+			boss.scheduleAtFixedRate(this::evict,1,1,TimeUnit.SECONDS);
+	}
+	
+	private void transport(String t)
+	{
+		boolean auto = "auto".equalsIgnoreCase(t);
+		
+		if((auto || "epoll".equalsIgnoreCase(t)) && Epoll.isAvailable())
+		{
+			boss = new EpollEventLoopGroup(Math.max(cag.getNtBosses(),cag.getNtListeners()));
+			worker = new EpollEventLoopGroup(cag.getNtWorkers());
+			channel = EpollServerSocketChannel.class;
+			transport = "epoll";
+		}
+		else
+		{
+			if(!auto && !"nio".equalsIgnoreCase(t))
+				log.warn("cag-server transport epoll unavailable, fallback to nio: {requested: {}}",t,Epoll.unavailabilityCause());
+			
+			boss = new NioEventLoopGroup(cag.getNtBosses());
+			worker = new NioEventLoopGroup(cag.getNtWorkers());
+			channel = NioServerSocketChannel.class;
+			transport = "nio";
+		}
 	}
 	
 	@PreDestroy
@@ -109,9 +197,28 @@ public class CagServer extends ChannelInboundHandlerAdapter
 		if(log.isDebugEnabled())
 			log.debug("cag-session({}) opened",ctx.channel().remoteAddress());
 		
-		ctx.channel().attr(ALIVE).set(System.currentTimeMillis());
+		CagIdle w = idles.get(ctx.executor());
+		if(w != null)
+			ctx.channel().attr(IDLE).set(w.add(ctx.channel()));
+		
+		register(ctx.channel());
 		
-		channels.offer(ctx);
+		if(limited())
+		{
+			long n = System.nanoTime();
+			String ip = ((InetSocketAddress)ctx.channel().remoteAddress()).getAddress().getHostAddress();
+			
+			Source s = sources.compute(ip,(k,v)->
+			{
+				if(v == null)
+					v = new Source(k,cag.getRlSourceBytes().toBytes(),cag.getRlSourceFrames(),n);
+				v.connections ++;
+				
+				return v;
+			});
+			
+			ctx.channel().attr(LIMIT).set(new Limit(s,cag.getRlConnectionBytes().toBytes(),cag.getRlConnectionFrames(),n));
+		}
 		
 		opened.add(1L);
 		active.add(1L);
@@ -123,6 +230,24 @@ public class CagServer extends ChannelInboundHandlerAdapter
 		if(log.isDebugEnabled())
 			log.debug("cag-session({}) closed",ctx.channel().remoteAddress());
 		
+		CagIdle.Entry e = ctx.channel().attr(IDLE).getAndSet(null);
+		if(e != null)
+			e.unlink();
+		
+		//kept after the last connection, a reconnection would otherwise get a full bucket
+		Limit l = ctx.channel().attr(LIMIT).getAndSet(null);
+		if(l != null)
+		{
+			long n = System.nanoTime();
+			sources.computeIfPresent(l.source.ip,(k,v)->
+			{
+				if(--v.connections == 0)
+					v.closedAt = n;
+				
+				return v;
+			});
+		}
+		
 		closed.add(1L);
 		active.add(-1L);
 	}
@@ -130,14 +255,33 @@ public class CagServer extends ChannelInboundHandlerAdapter
 	@Override
 	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
 	{
-		Document m = (Document)msg;
+		CagMessage m = (CagMessage)msg;
 		
 		if(log.isDebugEnabled())
 			log.debug("cag-session({}) received: {}",ctx.channel().remoteAddress(),CagUtil.toString(m));
 		
-		ctx.channel().attr(ALIVE).set(System.currentTimeMillis());
+		CagIdle.Entry e = ctx.channel().attr(IDLE).get();
+		if(e != null)
+			e.touch();
 		
-		mongo.offer(m);
+		//chunks of a large frame are counted with the frame
+		Limit l = ctx.channel().attr(LIMIT).get();
+		if(l != null && m.getSuffix().isEmpty())
+			throttle(ctx.channel(),l,m.getSize());
+		
+		//acked already, the agent resends nothing more
+		if(m.getKey() != null && dedup.duplicate(m.getKey()))
+		{
+			if(log.isDebugEnabled())
+				log.debug("cag-session({}) duplicate: {}",ctx.channel().remoteAddress(),CagUtil.toString(m));
+			
+			return;
+		}
+		
+		mongo.offer(m,ctx.channel().eventLoop());
+		
+		if(!paused && overflow())
+			pause();
 	}
 	
 	@Override
@@ -149,44 +293,249 @@ public class CagServer extends ChannelInboundHandlerAdapter
 		ctx.close();
 	}
 	
-	private void closeIdle()
+	private synchronized void register(Channel ch)
+	{
+		group.add(ch);
+		
+		if(paused)
+			ch.config().setAutoRead(false);
+	}
+	
+	private boolean limited()
+	{
+		return cag.getRlConnectionBytes().toBytes() > 0 || cag.getRlConnectionFrames() > 0 || cag.getRlSourceBytes().toBytes() > 0 || cag.getRlSourceFrames() > 0;
+	}
+	
+	//sources without connections for rlSourceIdle, once their buckets are full again
+	private void evict()
+	{
+		long n = System.nanoTime();
+		long i = cag.getRlSourceIdle().toNanos();
+		
+		for(String ip : sources.keySet())
+			sources.computeIfPresent(ip,(k,v)->v.connections==0&&n-v.closedAt>=i&&v.full(n)?null:v);
+	}
+	
+	//on the event loop of ch: data already read is kept, reading pauses until the buckets are out of debt
+	private void throttle(Channel ch, Limit l, int size)
 	{
-		ChannelHandlerContext last = channels.peekLast();
-		if(last != null)
+		long n = System.nanoTime();
+		long d = Math.max(l.acquire(size,n),l.source.acquire(size,n));
+		if(d <= 0 || l.throttled)
+			return;
+		
+		l.throttled = true;
+		ch.config().setAutoRead(false);
+		
+		l.source.throttles.add(1L);
+		l.source.throttled.add(d);
+		throttled.add(d);
+		
+		ch.eventLoop().schedule(()->
 		{
-			long a = System.currentTimeMillis()-cag.getNtIdleTime().toMillis();
+			l.throttled = false;
 			
-			while(true)
+			//a pause of backpressure in between keeps the channel paused
+			if(!paused)
 			{
-				ChannelHandlerContext ctx = channels.poll();
-				
-				Channel ch = ctx.channel();
-				if(ch.isActive())
-				{
-					if(ch.attr(ALIVE).get() <= a)
-						ch.close();
-					else
-						channels.offer(ctx);
-				}
-				
-				if(ctx == last)
-					break;
+				ch.config().setAutoRead(true);
+				if(paused)
+					ch.config().setAutoRead(false);
 			}
+		},d,TimeUnit.NANOSECONDS);
+	}
+	
+	//the ring of CagMongo always has marks, at 3/4 and 1/2 of mgRing, so that an offer rarely finds it full
+	private boolean overflow()
+	{
+		long s = cag.getMgStockHigh().toBytes();
+		long d = cag.getNtDirectHigh().toBytes();
+		
+		return !cag.isMgAffine() && mongo.ring() >= cag.getMgRing()/4*3 || s > 0 && mongo.stock() >= s || d > 0 && CagUtil.usedDirectMemory() >= d;
+	}
+	
+	private boolean underflow()
+	{
+		long s = cag.getMgStockHigh().toBytes();
+		long d = cag.getNtDirectHigh().toBytes();
+		
+		return mongo.ring() <= cag.getMgRing()/2 && (s <= 0 || mongo.stock() <= cag.getMgStockLow().toBytes()) && (d <= 0 || CagUtil.usedDirectMemory() <= cag.getNtDirectLow().toBytes());
+	}
+	
+	private void backpressure()
+	{
+		if(!paused)
+		{
+			if(overflow())
+				pause();
 		}
+		else if(underflow())
+			resume();
+	}
+	
+	private synchronized void pause()
+	{
+		if(paused)
+			return;
+		
+		paused = true;
+		pausedAt = System.nanoTime();
+		pauses ++;
+		
+		group.forEach(ch->ch.config().setAutoRead(false));
+		
+		log.warn("cag-server paused: {channels: {}, ring: {}, stock: {}, direct: {}}",CagUtil.toString(group.size()),CagUtil.toString(mongo.ring()),
+				CagUtil.toString(DataSize.ofBytes(mongo.stock())),CagUtil.toString(DataSize.ofBytes(CagUtil.usedDirectMemory())));
+	}
+	
+	private synchronized void resume()
+	{
+		if(!paused)
+			return;
+		
+		paused = false;
+		long t = System.nanoTime()-pausedAt;
+		pausedTime += t;
+		
+		//throttled channels resume when their buckets allow
+		group.forEach(ch->
+		{
+			Limit l = ch.attr(LIMIT).get();
+			if(l == null || !l.throttled)
+				ch.config().setAutoRead(true);
+		});
+		
+		log.info("cag-server resumed: {channels: {}, ring: {}, stock: {}, direct: {}, time: {}}",CagUtil.toString(group.size()),CagUtil.toString(mongo.ring()),
+				CagUtil.toString(DataSize.ofBytes(mongo.stock())),CagUtil.toString(DataSize.ofBytes(CagUtil.usedDirectMemory())),
+				CagUtil.toString(TimeUnit.NANOSECONDS.toMillis(t)," ms"));
+	}
+	
+	public synchronized long pauses()
+	{
+		return pauses;
+	}
+	
+	public synchronized long pausedTime()
+	{
+		long t = pausedTime;
+		if(paused)
+			t += System.nanoTime()-pausedAt;
+		
+		return TimeUnit.NANOSECONDS.toMillis(t);
 	}
 	
 	public long opened()
 	{
-		return opened.sumThenReset();
+		return opened.sum();
 	}
 	
 	public long closed()
 	{
-		return closed.sumThenReset();
+		return closed.sum();
 	}
 	
 	public long active()
 	{
 		return active.sum();
 	}
+	
+	public long[] accepted()
+	{
+		return acceptors.stream().mapToLong(a->a.accepted.sum()).toArray();
+	}
+	
+	//ms reads were paused by the rate limits
+	public long throttledTime()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(throttled.sum());
+	}
+	
+	//source IPs connected, or closed within rlSourceIdle, most throttled first
+	public Map<String,Map<String,Object>> throttled()
+	{
+		Map<String,Map<String,Object>> m = new LinkedHashMap<>();
+		
+		sources.values().stream().sorted(Comparator.comparingLong((Source s)->s.throttled.sum()).reversed()).forEach(s->
+		{
+			Map<String,Object> v = new LinkedHashMap<>();
+			
+			v.put("connections",s.connections);
+			v.put("throttles",s.throttles.sum());
+			v.put("throttledTime",TimeUnit.NANOSECONDS.toMillis(s.throttled.sum()));
+			
+			m.put(s.ip,v);
+		});
+		
+		return m;
+	}
+	
+	//buckets of bytes and frames per second, null when not limited
+	private static class Buckets
+	{
+		private final CagLimiter bytes;
+		private final CagLimiter frames;
+		
+		private Buckets(long bytes, int frames, long now)
+		{
+			this.bytes = bytes>0?new CagLimiter(bytes,now):null;
+			this.frames = frames>0?new CagLimiter(frames,now):null;
+		}
+		
+		protected long acquire(int size, long now)
+		{
+			long b = bytes!=null?bytes.acquire(size,now):0L;
+			long f = frames!=null?frames.acquire(1L,now):0L;
+			
+			return Math.max(b,f);
+		}
+		
+		protected boolean full(long now)
+		{
+			return (bytes == null || bytes.full(now)) && (frames == null || frames.full(now));
+		}
+	}
+	
+	//shared by the connections of an IP, on any event loop
+	private static class Source extends Buckets
+	{
+		private final String ip;
+		//changed in sources.compute
+		private int connections;
+		private long closedAt;
+		private LongAdder throttles = new LongAdder();
+		private LongAdder throttled = new LongAdder();
+		
+		private Source(String ip, long bytes, int frames, long now)
+		{
+			super(bytes,frames,now);
+			this.ip = ip;
+		}
+	}
+	
+	private static class Limit extends Buckets
+	{
+		private final Source source;
+		//set on the event loop, read by resume()
+		private volatile boolean throttled;
+		
+		private Limit(Source source, long bytes, int frames, long now)
+		{
+			super(bytes,frames,now);
+			this.source = source;
+		}
+	}
+	
+	@Sharable
+	private static class Acceptor extends ChannelInboundHandlerAdapter
+	{
+		private LongAdder accepted = new LongAdder();
+		
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+		{
+			accepted.add(1L);
+			
+			super.channelRead(ctx,msg);
+		}
+	}
 }
\ No newline at end of file
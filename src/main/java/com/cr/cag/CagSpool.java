@@ -0,0 +1,254 @@
+package com.cr.cag;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.MongoClientSettings;
+
+import io.netty.util.internal.PlatformDependent;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Component
+@Slf4j
+public class CagSpool
+{
+	//segment: [int replayed offset][int length][bson]...[int 0]
+	private static final int HEAD = 4;
+	
+	private static final Codec<Document> CODEC = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+	
+	@Autowired
+	private CagProperties cag;
+	
+	private File dir;
+	private long seq;
+	
+	private Deque<File> files = new ArrayDeque<>();
+	private MappedByteBuffer head;
+	private MappedByteBuffer tail;
+	private File last;
+	private int next;
+	
+	private long pending;
+	
+	@PostConstruct
+	private void init() throws IOException
+	{
+		if(!enabled())
+			return;
+		
+		dir = new File(cag.getMgSpool());
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create spool directory: "+dir);
+		
+		File[] f = dir.listFiles((d,n)->n.endsWith(".spool"));
+		Arrays.sort(f);
+		
+		for(File s : f)
+		{
+			MappedByteBuffer b = map(s,0);
+			
+			int p = b.getInt(0);
+			while(p+4 <= b.capacity())
+			{
+				int l = b.getInt(p);
+				if(l <= 0)
+					break;
+				
+				pending += l;
+				p += 4+l;
+			}
+			
+			files.offer(s);
+			seq = Long.parseLong(s.getName().substring(0,s.getName().indexOf('.')))+1;
+			
+			if(s == f[f.length-1])
+			{
+				tail = b;
+				tail.position(p);
+				last = s;
+			}
+			else
+				PlatformDependent.freeDirectBuffer(b);
+		}
+		
+		if(!files.isEmpty())
+			log.info("cag-spool recovered: {files: {}, pending: {}}",files.size(),CagUtil.toString(pending));
+	}
+	
+	@PreDestroy
+	private synchronized void close()
+	{
+		if(tail != null)
+			tail.force();
+		
+		if(head != tail)
+			unmap(head);
+		unmap(tail);
+		head = tail = null;
+	}
+	
+	public boolean enabled()
+	{
+		return !cag.getMgSpool().isEmpty();
+	}
+	
+	public synchronized boolean isEmpty()
+	{
+		return pending == 0;
+	}
+	
+	public synchronized long pending()
+	{
+		return pending;
+	}
+	
+	public void write(Bson msg) throws IOException
+	{
+		if(msg instanceof RawBsonDocument)
+		{
+			ByteBuffer b = ((RawBsonDocument)msg).getByteBuffer().asNIO();
+			
+			write(b.array(),b.arrayOffset()+b.position(),b.remaining());
+		}
+		else
+		{
+			//the _id the driver would generate on insert, a replay after a partial insert then finds the saved ones as duplicates
+			Document d = (Document)msg;
+			d.putIfAbsent("_id",new ObjectId());
+			
+			BasicOutputBuffer o = new BasicOutputBuffer();
+			CODEC.encode(new BsonBinaryWriter(o),d,EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+			
+			write(o.getInternalBuffer(),0,o.getSize());
+		}
+	}
+	
+	public synchronized void write(byte[] bson, int offset, int length) throws IOException
+	{
+		if(tail == null || tail.remaining() < 4+length)
+			roll(length);
+		
+		tail.putInt(length);
+		tail.put(bson,offset,length);
+		
+		pending += length;
+	}
+	
+	private void roll(int length) throws IOException
+	{
+		if(tail != head)
+			unmap(tail);
+		
+		last = new File(dir,String.format("%016d.spool",seq++));
+		tail = map(last,Math.max((int)cag.getMgSpoolSegment().toBytes(),HEAD+4+length+4));
+		tail.putInt(0,HEAD);
+		tail.position(HEAD);
+		
+		files.offer(last);
+	}
+	
+	public synchronized List<RawBsonDocument> read(long bytes) throws IOException
+	{
+		List<RawBsonDocument> r = new ArrayList<>();
+		
+		while(!files.isEmpty())
+		{
+			if(head == null)
+				head = files.peek()==last?tail:map(files.peek(),0);
+			
+			int p = head.getInt(0);
+			int w = head==tail?tail.position():head.capacity();
+			
+			long b = 0;
+			while(p+4 <= w && b < bytes)
+			{
+				int l = head.getInt(p);
+				if(l <= 0)
+					break;
+				
+				byte[] m = new byte[l];
+				ByteBuffer d = head.duplicate();
+				d.position(p+4);
+				d.get(m);
+				
+				r.add(new RawBsonDocument(m));
+				b += l;
+				p += 4+l;
+			}
+			
+			if(!r.isEmpty())
+			{
+				next = p;
+				break;
+			}
+			
+			if(head == tail)
+				break;
+			
+			unmap(head);
+			head = null;
+			
+			File f = files.poll();
+			if(!f.delete())
+				log.warn("cag-spool deleting failure: {}",f);
+		}
+		
+		return r;
+	}
+	
+	public synchronized void commit()
+	{
+		if(head == null)
+			return;
+		
+		int p = head.getInt(0);
+		for(int i=p;i<next;)
+		{
+			int l = head.getInt(i);
+			pending -= l;
+			i += 4+l;
+		}
+		
+		head.putInt(0,next);
+	}
+	
+	private static MappedByteBuffer map(File file, int size) throws IOException
+	{
+		try(RandomAccessFile f = new RandomAccessFile(file,"rw");FileChannel c = f.getChannel())
+		{
+			return c.map(MapMode.READ_WRITE,0,size>0?size:c.size());
+		}
+	}
+	
+	private static void unmap(MappedByteBuffer buf)
+	{
+		if(buf != null)
+			PlatformDependent.freeDirectBuffer(buf);
+	}
+}
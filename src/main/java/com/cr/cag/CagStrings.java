@@ -0,0 +1,108 @@
+package com.cr.cag;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+public class CagStrings
+{
+	private static final int KEYS = 256;
+	private static final int SCRATCH = 4096;
+	
+	private final Charset charset;
+	private final boolean ascii;
+	
+	//per event loop key cache, direct mapped by hash of the raw bytes
+	private final FastThreadLocal<Keys> keys = new FastThreadLocal<Keys>()
+	{
+		@Override
+		protected Keys initialValue()
+		{
+			return new Keys();
+		}
+	};
+	
+	public CagStrings(Charset charset)
+	{
+		byte[] a = new byte[128];
+		for(int i=0;i<a.length;i++)
+			a[i] = (byte)i;
+		
+		this.charset = charset;
+		this.ascii = Arrays.equals(a,new String(a,StandardCharsets.US_ASCII).getBytes(charset));
+	}
+	
+	public String key(ByteBuf buf, int index, int length)
+	{
+		int h = 0;
+		for(int i=0;i<length;i++)
+			h = 31*h+buf.getByte(index+i);
+		
+		Keys k = keys.get();
+		int s = (h^h>>>16)&(KEYS-1);
+		
+		byte[] b = k.bytes[s];
+		if(b != null && b.length == length)
+		{
+			int i = 0;
+			while(i < length && b[i] == buf.getByte(index+i))
+				i ++;
+			
+			if(i == length)
+				return k.strings[s];
+		}
+		
+		b = new byte[length];
+		buf.getBytes(index,b);
+		
+		String v = value(buf,index,length);
+		
+		k.bytes[s] = b;
+		k.strings[s] = v;
+		
+		return v;
+	}
+	
+	public String value(ByteBuf buf, int index, int length)
+	{
+		if(length == 0)
+			return "";
+		
+		if(!ascii || !ascii(buf,index,length))
+			return buf.getCharSequence(index,length,charset).toString();
+		
+		if(buf.hasArray())
+			return new String(buf.array(),buf.arrayOffset()+index,length,StandardCharsets.ISO_8859_1);
+		
+		byte[] b = length<=SCRATCH?keys.get().scratch:new byte[length];
+		buf.getBytes(index,b,0,length);
+		
+		return new String(b,0,length,StandardCharsets.ISO_8859_1);
+	}
+	
+	private static boolean ascii(ByteBuf buf, int index, int length)
+	{
+		int i = index;
+		int e = index+length;
+		
+		for(;i+8<=e;i+=8)
+			if((buf.getLong(i)&0x8080808080808080L) != 0)
+				return false;
+		
+		for(;i<e;i++)
+			if(buf.getByte(i) < 0)
+				return false;
+		
+		return true;
+	}
+	
+	private static class Keys
+	{
+		private byte[][] bytes = new byte[KEYS][];
+		private String[] strings = new String[KEYS];
+		private byte[] scratch = new byte[SCRATCH];
+	}
+}
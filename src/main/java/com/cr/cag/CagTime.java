@@ -0,0 +1,134 @@
+package com.cr.cag;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+
+//yyyyMMddHHmmssSSS parsing and yyyy-MM-dd HH:mm:ss.SSS formatting on a cached day base
+public class CagTime
+{
+	public static final long INVALID = Long.MIN_VALUE;
+	
+	private static final long DAY = 24*3600*1000L;
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+	
+	//the last two days seen, records of two days interleave around midnight
+	private static volatile Day parsed = new Day(LocalDate.now(ZONE));
+	private static volatile Day parsedLast = parsed;
+	private static volatile Day formatted = parsed;
+	private static volatile Day formattedLast = parsed;
+	
+	public static long parse(ByteBuf buf, int index, int length)
+	{
+		if(length != 17)
+			return INVALID;
+		
+		int y = digits(buf,index,4);
+		int M = digits(buf,index+4,2);
+		int d = digits(buf,index+6,2);
+		int H = digits(buf,index+8,2);
+		int m = digits(buf,index+10,2);
+		int s = digits(buf,index+12,2);
+		int S = digits(buf,index+14,3);
+		if((y|M|d|H|m|s|S) < 0 || M < 1 || M > 12 || d < 1 || d > 31 || H > 23 || m > 59 || s > 59)
+			return INVALID;
+		
+		int ymd = y*10000+M*100+d;
+		Day day = parsed;
+		if(day.ymd != ymd && (day=parsedLast).ymd != ymd)
+		{
+			if(d > LocalDate.of(y,M,1).lengthOfMonth())
+				return INVALID;
+			
+			parsedLast = parsed;
+			parsed = day = new Day(LocalDate.of(y,M,d));
+		}
+		
+		if(!day.fixed)
+			return LocalDateTime.of(y,M,d,H,m,s,S*1000000).atZone(ZONE).withLaterOffsetAtOverlap().toInstant().toEpochMilli();
+		
+		return day.base+((H*60+m)*60+s)*1000L+S;
+	}
+	
+	//wall clock of a System.nanoTime()
+	public static long wall(long nanos)
+	{
+		return System.currentTimeMillis()-TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-nanos);
+	}
+	
+	public static StringBuilder format(long millis, StringBuilder sb)
+	{
+		Day day = formatted;
+		if(!day.contains(millis) && !(day=formattedLast).contains(millis))
+		{
+			ZonedDateTime t = Instant.ofEpochMilli(millis).atZone(ZONE);
+			
+			formattedLast = formatted;
+			formatted = day = new Day(t.toLocalDate());
+			if(!day.fixed)
+			{
+				sb.append(day.prefix);
+				return time(sb,t.getHour(),t.getMinute(),t.getSecond(),t.getNano()/1000000);
+			}
+		}
+		
+		int r = (int)(millis-day.base);
+		
+		sb.append(day.prefix);
+		return time(sb,r/3600000,r/60000%60,r/1000%60,r%1000);
+	}
+	
+	private static StringBuilder time(StringBuilder sb, int H, int m, int s, int S)
+	{
+		sb.append((char)('0'+H/10)).append((char)('0'+H%10)).append(':');
+		sb.append((char)('0'+m/10)).append((char)('0'+m%10)).append(':');
+		sb.append((char)('0'+s/10)).append((char)('0'+s%10)).append('.');
+		sb.append((char)('0'+S/100)).append((char)('0'+S/10%10)).append((char)('0'+S%10));
+		
+		return sb;
+	}
+	
+	private static int digits(ByteBuf buf, int index, int length)
+	{
+		int v = 0;
+		for(int i=0;i<length;i++)
+		{
+			int c = buf.getByte(index+i)-'0';
+			if(c < 0 || c > 9)
+				return -1;
+			
+			v = v*10+c;
+		}
+		
+		return v;
+	}
+	
+	private static class Day
+	{
+		private final int ymd;
+		private final long base;
+		//no offset change within the day
+		private final boolean fixed;
+		private final String prefix;
+		
+		private Day(LocalDate date)
+		{
+			ZonedDateTime start = date.atStartOfDay(ZONE);
+			
+			ymd = date.getYear()*10000+date.getMonthValue()*100+date.getDayOfMonth();
+			base = start.toInstant().toEpochMilli();
+			fixed = start.toLocalTime().toSecondOfDay() == 0 && start.getOffset().equals(start.plusDays(1).minusNanos(1).getOffset());
+			prefix = String.format("%04d-%02d-%02d ",date.getYear(),date.getMonthValue(),date.getDayOfMonth());
+		}
+		
+		private boolean contains(long millis)
+		{
+			return fixed && millis >= base && millis < base+DAY;
+		}
+	}
+}
@@ -1,29 +1,70 @@
 package com.cr.cag;
 
-import java.text.DateFormat;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
 import java.text.NumberFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 
-import org.bson.Document;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
 import org.springframework.util.unit.DataSize;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
 
 public class CagUtil
 {
-	private static final ThreadLocal<DateFormat> DATE = ThreadLocal.withInitial(()->new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS"));
 	private static final ThreadLocal<NumberFormat> NUM = ThreadLocal.withInitial(NumberFormat::getInstance);
 	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final BufferPoolMXBean DIRECT = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream().filter(b->"direct".equals(b.getName())).findFirst().orElse(null);
 	
-	public static String toString(Document msg)
+	//netty counts only what it allocates without a cleaner and reports -1 otherwise (Java 9+ by default), then the direct buffer pool of the jvm
+	public static long usedDirectMemory()
+	{
+		long n = PlatformDependent.usedDirectMemory();
+		if(n < 0 && DIRECT != null)
+			n = DIRECT.getMemoryUsed();
+		
+		return n;
+	}
+	
+	public static String toString(CagMessage msg)
+	{
+		return toString(msg.getBody());
+	}
+	
+	//Document or RawBsonDocument
+	public static String toString(Bson msg)
+	{
+		@SuppressWarnings("unchecked")
+		Map<String,?> m = (Map<String,?>)msg;
+		
+		return toString(m);
+	}
+	
+	public static String toString(Map<String,?> msg)
 	{
 		StringBuilder sb = new StringBuilder();
 		
 		sb.append('{');
 		
-		msg.forEach((k,v)->
+		msg.forEach((k,o)->
 		{
+			Object v = o;
+			if(o instanceof BsonValue)
+			{
+				BsonValue b = (BsonValue)o;
+				if(b.isString())
+					v = b.asString().getValue();
+				else if(b.isDateTime())
+					v = new Date(b.asDateTime().getValue());
+				else if(b.isNumber())
+					v = b.asNumber().longValue();
+				else if(b.isObjectId())
+					v = b.asObjectId().getValue();
+			}
+			
 			if(sb.length() > 1)
 				sb.append(", ");
 			sb.append(k);
@@ -37,7 +78,7 @@ public class CagUtil
 					sb.append(s,0,200-3).append("...");
 			}
 			else if(v instanceof Date)
-				sb.append(DATE.get().format((Date)v));
+				CagTime.format(((Date)v).getTime(),sb);
 			else
 				sb.append(v);
 		});
@@ -0,0 +1 @@
+java -Xms1g -Xmx1g -XX:MaxDirectMemorySize=2g -Dloader.main=com.cr.cag.CagLoader -cp cr-cag-1.1.0.RELEASE.jar org.springframework.boot.loader.PropertiesLauncher --cag.ldConnections=64 --cag.ldDuration=300s "$@"
\ No newline at end of file
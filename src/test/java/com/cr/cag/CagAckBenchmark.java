@@ -0,0 +1,174 @@
+package com.cr.cag;
+
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+//pipelined agents against the server: the time until a burst is acked, and the reads of acks per frame
+//acked one by one (pipeline 1) every frame costs a flush of its own, as every pipelined one did before acks were coalesced
+@State(Scope.Benchmark)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagAckBenchmark
+{
+	private static final int CONNECTIONS = 4;
+	
+	//frames written at once per connection
+	@Param({"1","16"})
+	private int pipeline;
+	
+	//cag.dcAckDelay in microseconds
+	@Param({"0","1000"})
+	private int delay;
+	
+	@Param({"1024"})
+	private int size;
+	
+	private CagServer server;
+	private EventLoopGroup group;
+	private List<Channel> channels = new ArrayList<>();
+	private LongAdder acked = new LongAdder();
+	private LongAdder reads = new LongAdder();
+	private ByteBuf frame;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		CagBench.quiet();
+		
+		CagProperties cag = new CagProperties();
+		cag.setNtBosses(1);
+		cag.setNtWorkers(1);
+		cag.setDcAckDelay(Duration.ofNanos(delay*1000L));
+		server = CagBench.server(cag);
+		
+		Charset charset = Charset.forName(cag.getDcCharset());
+		frame = CagBench.frame(CagLoader.fields(new Random(size),size,charset),charset);
+		
+		group = Epoll.isAvailable()?new EpollEventLoopGroup(1):new NioEventLoopGroup(1);
+		Bootstrap b = new Bootstrap()
+				.group(group)
+				.channel(Epoll.isAvailable()?EpollSocketChannel.class:NioSocketChannel.class)
+				.option(ChannelOption.TCP_NODELAY,true);
+		
+		for(int i=0;i<CONNECTIONS;i++)
+			channels.add(CagBench.connect(b.clone().handler(new Acks()),cag));
+	}
+	
+	@TearDown
+	public void teardown()
+	{
+		channels.forEach(Channel::close);
+		group.shutdownGracefully().awaitUninterruptibly();
+		CagBench.shutdown(server);
+		frame.release();
+	}
+	
+	//with pipeline 1 the ack latency of a frame
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void latency()
+	{
+		burst();
+	}
+	
+	//reads / acks is the number of reads of acks per frame
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void reads(Reads r)
+	{
+		long a = acked.sum();
+		long n = reads.sum();
+		
+		burst();
+		
+		r.acks += acked.sum()-a;
+		r.reads += reads.sum()-n;
+	}
+	
+	private void burst()
+	{
+		long target = acked.sum()+CONNECTIONS*pipeline;
+		
+		for(Channel ch : channels)
+			ch.eventLoop().execute(()->
+			{
+				for(int i=0;i<pipeline;i++)
+					ch.write(frame.retainedDuplicate(),ch.voidPromise());
+				ch.flush();
+			});
+		
+		while(acked.sum() < target)
+			LockSupport.parkNanos(10000L);
+	}
+	
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Reads
+	{
+		public long acks;
+		public long reads;
+		
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			acks = 0;
+			reads = 0;
+		}
+	}
+	
+	//36 bytes of header per frame
+	private class Acks extends ChannelInboundHandlerAdapter
+	{
+		private int bytes;
+		
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+		{
+			ByteBuf m = (ByteBuf)msg;
+			
+			bytes += m.readableBytes();
+			acked.add(bytes/(4*9));
+			bytes %= 4*9;
+			reads.increment();
+			
+			m.release();
+		}
+	}
+}
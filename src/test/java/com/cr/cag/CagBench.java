@@ -0,0 +1,162 @@
+package com.cr.cag;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+
+public class CagBench
+{
+	public static CagDecoder decoder(CagProperties cag)
+	{
+		CagDecoder decoder = new CagDecoder();
+		
+		ReflectionTestUtils.setField(decoder,"cag",cag);
+		ReflectionTestUtils.setField(decoder,"metrics",new CagMetrics());
+		ReflectionTestUtils.setField(decoder,"dedup",dedup(cag));
+		ReflectionTestUtils.invokeMethod(decoder,"init");
+		
+		return decoder;
+	}
+	
+	public static CagDedup dedup(CagProperties cag)
+	{
+		CagDedup dedup = new CagDedup();
+		
+		ReflectionTestUtils.setField(dedup,"cag",cag);
+		ReflectionTestUtils.invokeMethod(dedup,"init");
+		
+		return dedup;
+	}
+	
+	//in-memory mongod: insert answers every insertMany, no invocations kept
+	@SuppressWarnings("unchecked")
+	public static MongoTemplate template(Answer<?> insert)
+	{
+		MongoCollection<Document> c = mock(MongoCollection.class,withSettings().stubOnly());
+		MongoCollection<RawBsonDocument> r = mock(MongoCollection.class,withSettings().stubOnly());
+		MongoDatabase db = mock(MongoDatabase.class,withSettings().stubOnly());
+		MongoTemplate template = mock(MongoTemplate.class,withSettings().stubOnly());
+		when(template.getDb()).thenReturn(db);
+		when(db.getCollection(anyString())).thenReturn(c);
+		when(db.getCollection(anyString(),eq(RawBsonDocument.class))).thenReturn(r);
+		doAnswer(insert).when(c).insertMany(anyList(),any(InsertManyOptions.class));
+		doAnswer(insert).when(r).insertMany(anyList(),any(InsertManyOptions.class));
+		
+		return template;
+	}
+	
+	//started, database: the reactive one with mgSink reactive, or null
+	public static CagMongo mongo(CagProperties cag, MongoTemplate template, com.mongodb.reactivestreams.client.MongoDatabase database, ThreadPoolTaskExecutor executor)
+	{
+		CagSpool spool = new CagSpool();
+		ReflectionTestUtils.setField(spool,"cag",cag);
+		
+		CagMongo mongo = new CagMongo();
+		ReflectionTestUtils.setField(mongo,"cag",cag);
+		ReflectionTestUtils.setField(mongo,"mongo",template);
+		ReflectionTestUtils.setField(mongo,"executor",executor);
+		ReflectionTestUtils.setField(mongo,"spool",spool);
+		ReflectionTestUtils.setField(mongo,"metrics",new CagMetrics());
+		ReflectionTestUtils.setField(mongo,"reject",new CagReject());
+		ReflectionTestUtils.setField(mongo,"database",database);
+		mongo.startup();
+		
+		return mongo;
+	}
+	
+	//on 127.0.0.1 at a free port, messages dropped at a mocked sink
+	public static CagServer server(CagProperties cag) throws IOException
+	{
+		cag.setAddress("127.0.0.1");
+		try(ServerSocket s = new ServerSocket(0))
+		{
+			cag.setPort(s.getLocalPort());
+		}
+		
+		CagServer server = new CagServer();
+		ReflectionTestUtils.setField(server,"cag",cag);
+		ReflectionTestUtils.setField(server,"mongo",mock(CagMongo.class,withSettings().stubOnly()));
+		ReflectionTestUtils.setField(server,"decoder",decoder(cag));
+		ReflectionTestUtils.setField(server,"dedup",dedup(cag));
+		server.startup();
+		
+		return server;
+	}
+	
+	public static void shutdown(CagServer server)
+	{
+		server.shutdown();
+		((EventLoopGroup)ReflectionTestUtils.getField(server,"boss")).terminationFuture().awaitUninterruptibly();
+		((EventLoopGroup)ReflectionTestUtils.getField(server,"worker")).terminationFuture().awaitUninterruptibly();
+	}
+	
+	//the listener binds asynchronously
+	public static Channel connect(Bootstrap b, CagProperties cag) throws InterruptedException
+	{
+		for(int i=0;;i++)
+		{
+			try
+			{
+				return b.connect(cag.getAddress(),cag.getPort()).sync().channel();
+			}
+			catch(Exception e)
+			{
+				if(i >= 50)
+					throw e;
+				
+				Thread.sleep(100);
+			}
+		}
+	}
+	
+	//keeps per message warnings out of the measurement
+	public static void quiet()
+	{
+		Configurator.setLevel("com.cr.cag",Level.ERROR);
+	}
+	
+	public static ByteBuf frame(Map<String,String> fields, Charset charset)
+	{
+		return CagLoader.frame(fields,charset);
+	}
+	
+	public static ByteBuf garbage(Random random, int length)
+	{
+		ByteBuf buf = ByteBufAllocator.DEFAULT.directBuffer(length);
+		
+		for(int i=0;i<length;i++)
+			buf.writeByte(random.nextInt(4)==0?0:random.nextInt(256));
+		
+		return buf;
+	}
+}
@@ -0,0 +1,111 @@
+package com.cr.cag;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagDecoderBenchmark
+{
+	@Param({"1024","1048576"})
+	private int text;
+	
+	@Param({"false","true"})
+	private boolean raw;
+	
+	//bytes per read for the split path, an MSS and a full read buffer
+	@Param({"1460","65536"})
+	private int chunk;
+	
+	//dcAccumulate in MB, 0: reads kept as components of a composite buffer
+	@Param({"0","16"})
+	private int accumulate;
+	
+	private EmbeddedChannel channel;
+	private ByteBuf frame;
+	private ByteBuf corrupt;
+	
+	@Setup
+	public void setup()
+	{
+		CagBench.quiet();
+		
+		CagProperties cag = new CagProperties();
+		cag.setDcRawBson(raw);
+		cag.setDcAccumulate(DataSize.ofMegabytes(accumulate));
+		
+		Random r = new Random(text);
+		
+		channel = new EmbeddedChannel(CagBench.decoder(cag));
+		frame = CagBench.frame(CagLoader.fields(r,text),StandardCharsets.UTF_8);
+		
+		ByteBuf g = CagBench.garbage(r,4096);
+		corrupt = ByteBufAllocator.DEFAULT.directBuffer(g.readableBytes()+frame.readableBytes());
+		corrupt.writeBytes(g).writeBytes(frame,frame.readerIndex(),frame.readableBytes());
+		g.release();
+	}
+	
+	@TearDown
+	public void teardown()
+	{
+		channel.finishAndReleaseAll();
+		frame.release();
+		corrupt.release();
+	}
+	
+	@Benchmark
+	public Object decode()
+	{
+		channel.writeInbound(frame.retainedDuplicate());
+		
+		return receive();
+	}
+	
+	@Benchmark
+	public Object split()
+	{
+		int w = frame.writerIndex();
+		for(int i=frame.readerIndex();i<w;i+=chunk)
+			channel.writeInbound(frame.retainedSlice(i,Math.min(chunk,w-i)));
+		
+		return receive();
+	}
+	
+	@Benchmark
+	public Object resync()
+	{
+		channel.writeInbound(corrupt.retainedDuplicate());
+		
+		return receive();
+	}
+	
+	private Object receive()
+	{
+		channel.releaseOutbound();
+		
+		return channel.readInbound();
+	}
+}
@@ -0,0 +1,140 @@
+package com.cr.cag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+class CagDecoderTests
+{
+	//the same frames through a Document and through dcRawBson, with every charset and option changing the fields
+	@Test
+	void raw()
+	{
+		for(String charset : new String[] {"UTF-8","GBK"})
+			for(boolean ignoreText : new boolean[] {false,true})
+				for(String receiveTime : new String[] {"","receiveTime"})
+				{
+					CagProperties cag = properties(charset,ignoreText,receiveTime,false);
+					CagProperties raw = properties(charset,ignoreText,receiveTime,true);
+					
+					for(Map<String,String> f : frames(new Random(0)))
+						check(cag,raw,f);
+				}
+	}
+	
+	private static CagProperties properties(String charset, boolean ignoreText, String receiveTime, boolean raw)
+	{
+		CagProperties cag = new CagProperties();
+		cag.setDcCharset(charset);
+		cag.setDcIgnoreText(ignoreText);
+		cag.setDcReceiveTime(receiveTime);
+		cag.setDcRawBson(raw);
+		
+		return cag;
+	}
+	
+	private static List<Map<String,String>> frames(Random r)
+	{
+		List<Map<String,String>> l = new ArrayList<>();
+		
+		for(int i=0;i<50;i++)
+			l.add(CagLoader.fields(r,r.nextInt(2000)));
+		
+		//fields the decoder writes itself, an invalid time, empty and non ASCII values
+		String[][] fields = {{"_id","a1"},{"size","7"},{"insertTime","x"},{"STATE","1"},{"receiveTime","y"},{"text","t"},
+				{"time","2020"},{"time",""},{"empty",""},{"键","值"},{"_id",""}};
+		for(String[] f : fields)
+		{
+			Map<String,String> m = new LinkedHashMap<>();
+			m.put("host","h");
+			m.put(f[0],f[1]);
+			m.put("user","u");
+			l.add(m);
+		}
+		
+		Map<String,String> m = new LinkedHashMap<>();
+		for(String[] f : fields)
+			m.put(f[0],f[1]);
+		l.add(m);
+		
+		//a key BSON cannot hold
+		m = new LinkedHashMap<>();
+		m.put("host","h");
+		m.put("a\0b","v");
+		l.add(m);
+		
+		return l;
+	}
+	
+	private static void check(CagProperties cag, CagProperties raw, Map<String,String> fields)
+	{
+		Document d = (Document)decode(cag,fields);
+		RawBsonDocument b = (RawBsonDocument)decode(raw,fields);
+		
+		if(d == null)
+		{
+			assertNull(b,fields.toString());
+			
+			return;
+		}
+		
+		Set<String> names = new HashSet<>();
+		try(BsonBinaryReader reader = new BsonBinaryReader(b.getByteBuffer().asNIO()))
+		{
+			reader.readStartDocument();
+			while(reader.readBsonType() != BsonType.END_OF_DOCUMENT)
+			{
+				String n = reader.readName();
+				assertTrue(names.add(n),"duplicate "+n+" in "+fields);
+				reader.skipValue();
+			}
+		}
+		
+		Document e = b.decode(new DocumentCodec());
+		
+		//generated when the frame has none, as the driver does on insert
+		if(!fields.containsKey("_id"))
+			assertTrue(e.remove("_id") instanceof ObjectId,fields.toString());
+		
+		//the time of each decoding
+		assertTrue(d.remove("insertTime") instanceof Date && e.remove("insertTime") instanceof Date);
+		if(!cag.getDcReceiveTime().isEmpty())
+			assertTrue(d.remove(cag.getDcReceiveTime()) instanceof Date && e.remove(cag.getDcReceiveTime()) instanceof Date);
+		
+		assertEquals(d,e,fields.toString());
+	}
+	
+	private static Object decode(CagProperties cag, Map<String,String> fields)
+	{
+		EmbeddedChannel ch = new EmbeddedChannel(CagBench.decoder(cag));
+		
+		ByteBuf frame = CagBench.frame(fields,Charset.forName(cag.getDcCharset()));
+		ch.writeInbound(frame);
+		
+		CagMessage m = ch.readInbound();
+		ch.finishAndReleaseAll();
+		
+		return m!=null?m.getBody():null;
+	}
+}
@@ -0,0 +1,89 @@
+package com.cr.cag;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagIdleBenchmark
+{
+	private static final long IDLE = 300000L;
+	
+	@Param({"100000"})
+	private int connections;
+	
+	private CagIdle wheel;
+	private CagIdle.Entry[] entries;
+	private long now;
+	
+	//the former sweep: every context polled and offered again
+	private Deque<long[]> deque = new ArrayDeque<>();
+	
+	@Setup
+	public void setup()
+	{
+		EmbeddedChannel channel = new EmbeddedChannel();
+		
+		now = System.currentTimeMillis();
+		wheel = new CagIdle(IDLE,now);
+		entries = new CagIdle.Entry[connections];
+		for(int i=0;i<connections;i++)
+		{
+			entries[i] = wheel.add(channel);
+			deque.offer(new long[] {now});
+		}
+	}
+	
+	//one tick with connections that stay alive
+	@Benchmark
+	public int tick()
+	{
+		now += wheel.tick();
+		for(CagIdle.Entry e : entries)
+			e.touch();
+		
+		return wheel.expire(now);
+	}
+	
+	@Benchmark
+	public void touch()
+	{
+		for(CagIdle.Entry e : entries)
+			e.touch();
+	}
+	
+	@Benchmark
+	public int sweep()
+	{
+		long a = now-IDLE;
+		int c = 0;
+		for(int i=deque.size();i>0;i--)
+		{
+			long[] alive = deque.poll();
+			if(alive[0] <= a)
+				c ++;
+			deque.offer(alive);
+		}
+		
+		return c;
+	}
+}
@@ -0,0 +1,96 @@
+package com.cr.cag;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagMongoBenchmark
+{
+	private static final int MESSAGES = 10000;
+	
+	@Param({"1024","65536"})
+	private int size;
+	
+	@Param({"10"})
+	private int workers;
+	
+	private CagMongo mongo;
+	private ThreadPoolTaskExecutor executor;
+	private LongAdder inserted = new LongAdder();
+	private CagMessage message;
+	
+	@Setup
+	public void setup()
+	{
+		CagBench.quiet();
+		
+		CagProperties cag = new CagProperties();
+		cag.setMgWorkers(workers);
+		//ten full batches per invocation, a partial one would wait for mgDelay
+		cag.setMgBatch(DataSize.ofKilobytes((size+1024-1)/1024*MESSAGES/10));
+		cag.setMgDelay(Duration.ofSeconds(1));
+		
+		MongoTemplate template = CagBench.template(i->
+		{
+			inserted.add(((List<?>)i.getArgument(0)).size());
+			return null;
+		});
+		
+		executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(1+workers);
+		executor.initialize();
+		
+		mongo = CagBench.mongo(cag,template,null,executor);
+		
+		Document m = new Document();
+		m.putAll(CagLoader.fields(new Random(size),size));
+		m.put("size",size);
+		message = new CagMessage(m,size,System.nanoTime());
+	}
+	
+	@TearDown
+	public void teardown()
+	{
+		executor.shutdown();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void offer()
+	{
+		long target = inserted.sum()+MESSAGES;
+		
+		for(int i=0;i<MESSAGES;i++)
+			mongo.offer(message);
+		
+		while(inserted.sum() < target)
+			LockSupport.parkNanos(10000L);
+	}
+}
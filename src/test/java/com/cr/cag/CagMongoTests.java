@@ -0,0 +1,69 @@
+package com.cr.cag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+
+class CagMongoTests
+{
+	//a single worker list, taken by nothing but the batches of the event loops
+	@Test
+	void affine() throws Exception
+	{
+		CagProperties cag = new CagProperties();
+		cag.setMgAffine(true);
+		cag.setMgWorkers(1);
+		cag.setMgBatch(DataSize.ofKilobytes(4));
+		cag.setMgDelay(Duration.ofMillis(100));
+		
+		LongAdder inserted = new LongAdder();
+		MongoTemplate template = CagBench.template(i->
+		{
+			inserted.add(((List<?>)i.getArgument(0)).size());
+			return null;
+		});
+		
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(2);
+		executor.initialize();
+		
+		CagMongo mongo = CagBench.mongo(cag,template,null,executor);
+		//time for a boss, if one were started, to take the only list
+		Thread.sleep(200);
+		
+		EventLoop[] loops = {new DefaultEventLoop(),new DefaultEventLoop()};
+		try
+		{
+			//full batches and a partial one flushed after mgDelay on each loop
+			int n = 1001;
+			for(int i=0;i<n;i++)
+			{
+				EventLoop l = loops[i%loops.length];
+				l.execute(()->mongo.offer(new CagMessage(new Document("size",1024),1024,System.nanoTime()),l));
+			}
+			
+			for(long t=System.nanoTime()+TimeUnit.SECONDS.toNanos(10);inserted.sum()<n&&System.nanoTime()<t;)
+				Thread.sleep(10);
+			
+			assertEquals(n,inserted.sum());
+		}
+		finally
+		{
+			for(EventLoop l : loops)
+				l.shutdownGracefully();
+			executor.shutdown();
+		}
+	}
+}
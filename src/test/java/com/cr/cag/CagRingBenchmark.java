@@ -0,0 +1,136 @@
+package com.cr.cag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//producers offer as event loops do, the benchmark thread drains as the boss does
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagRingBenchmark
+{
+	private static final int MESSAGES = 1<<18;
+	//messages of 1 KB the former boss acquired at once
+	private static final int BATCH = 1024;
+	//as paused connections wait for the boss to make room in the ring
+	private static final long IDLE = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	@Param({"2","4","8","16","32","64"})
+	private int producers;
+	
+	//ring: CagRing, producers waiting while it is full, queue: the former ConcurrentLinkedQueue and Semaphore of KB permits
+	@Param({"ring","queue"})
+	private String handoff;
+	
+	private ExecutorService pool;
+	private CagMessage message;
+	
+	private CagRing<CagMessage> ring;
+	private List<CagMessage> drained = new ArrayList<>();
+	private Queue<CagMessage> queue;
+	private Semaphore semaphore;
+	
+	@Setup
+	public void setup()
+	{
+		pool = Executors.newFixedThreadPool(producers);
+		message = new CagMessage(new Document("size",1024),1024,System.nanoTime());
+		
+		ring = new CagRing<>(65536);
+		queue = new ConcurrentLinkedQueue<>();
+		semaphore = new Semaphore(0);
+	}
+	
+	@TearDown
+	public void teardown()
+	{
+		pool.shutdownNow();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public int offer() throws Exception
+	{
+		boolean r = "ring".equals(handoff);
+		int n = MESSAGES/producers;
+		
+		CountDownLatch start = new CountDownLatch(1);
+		for(int p=0;p<producers;p++)
+		{
+			pool.execute(()->
+			{
+				try
+				{
+					start.await();
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				
+				for(int i=0;i<n;i++)
+				{
+					if(r)
+					{
+						while(!ring.offer(message))
+							LockSupport.parkNanos(IDLE);
+					}
+					else
+					{
+						queue.offer(message);
+						semaphore.release((message.getSize()+1024-1)>>10);
+					}
+				}
+			});
+		}
+		start.countDown();
+		
+		int c = 0;
+		while(c < MESSAGES)
+		{
+			if(r)
+			{
+				drained.clear();
+				if(ring.drain(drained,CagMessage::getSize,BATCH*1024L) > 0)
+					c += drained.size();
+				else
+					Thread.yield();
+			}
+			else
+			{
+				semaphore.acquire(BATCH);
+				for(int i=0;i<BATCH;i++)
+					queue.poll();
+				c += BATCH;
+			}
+		}
+		
+		return c;
+	}
+}
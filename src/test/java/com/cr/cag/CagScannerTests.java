@@ -0,0 +1,120 @@
+package com.cr.cag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+class CagScannerTests
+{
+	private static final long MAX = 4096;
+	
+	//random bytes, mostly zeros so that candidates pass the zero checks
+	@Test
+	void random()
+	{
+		Random r = new Random(0);
+		
+		for(int n=0;n<200;n++)
+		{
+			byte[] b = new byte[1+r.nextInt(250)];
+			int d = 1+r.nextInt(200);
+			for(int i=0;i<b.length;i++)
+				b[i] = r.nextInt(d)==0?(byte)r.nextInt(256):0;
+			
+			check(b);
+		}
+	}
+	
+	//headers with lengths at and beyond their bounds, cut at every length
+	@Test
+	void adversarial()
+	{
+		int[][] lengths = {{100,100},{99,100},{100,99},{(int)MAX,(int)MAX},{(int)MAX+1,(int)MAX+1},{200,-1},{-1,-1},{0,0}};
+		
+		for(int[] l : lengths)
+		{
+			for(int before=0;before<130;before+=13)
+			{
+				byte[] b = new byte[before+100+40];
+				for(int i=0;i<before;i++)
+					b[i] = (byte)(i%3==0?7:0);
+				
+				ByteBuf h = Unpooled.wrappedBuffer(b).writerIndex(before);
+				h.writeZero(8).writeIntLE(l[0]).writeIntLE(l[1]).writeIntLE(0).writeIntLE(3);
+				b[before+100] = 1;
+				
+				for(int w=before;w<=b.length;w++)
+					check(b,w);
+			}
+		}
+	}
+	
+	//a frame whose body is all zeros but one byte near its end, and a header starting right after
+	@Test
+	void nearEnd()
+	{
+		for(int k=0;k<100;k+=3)
+		{
+			byte[] b = new byte[300];
+			ByteBuf h = Unpooled.wrappedBuffer(b).writerIndex(0);
+			h.writeZero(8).writeIntLE(100).writeIntLE(100);
+			b[k] = (byte)(k<8||k>=24?1:b[k]);
+			h.writerIndex(100+k).writeZero(8).writeIntLE(150).writeIntLE(150);
+			
+			check(b);
+		}
+	}
+	
+	//cut at every length within the last frame
+	private void check(byte[] b)
+	{
+		for(int w=Math.max(0,b.length-120);w<=b.length;w++)
+			check(b,w);
+	}
+	
+	private void check(byte[] b, int writer)
+	{
+		ByteBuf buf = Unpooled.wrappedBuffer(b);
+		
+		//every start near the end, a sample of the others
+		for(int index=0;index<=writer;index+=index<writer-120?7:1)
+			assertEquals(naive(buf,index,writer,MAX),CagScanner.find(buf,index,writer,MAX),"index "+index+", writer "+writer);
+	}
+	
+	private static int naive(ByteBuf buf, int index, int writer, long max)
+	{
+		for(int p=index;p<writer;p++)
+		{
+			int e = Math.min(p+100,writer);
+			
+			if(!zero(buf,p,Math.min(p+8,e)) || !zero(buf,p+24,e))
+				continue;
+			
+			if(e-p < 16)
+				return p;
+			
+			int MsgLen = buf.getIntLE(p+8);
+			int MsgMaxLen = buf.getIntLE(p+12);
+			if(MsgLen >= 100 && MsgLen <= max && MsgMaxLen >= MsgLen)
+				return p;
+		}
+		
+		return -1;
+	}
+	
+	private static boolean zero(ByteBuf buf, int from, int to)
+	{
+		for(int i=from;i<to;i++)
+		{
+			if(buf.getByte(i) != 0)
+				return false;
+		}
+		
+		return true;
+	}
+}
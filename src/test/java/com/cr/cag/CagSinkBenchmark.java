@@ -0,0 +1,168 @@
+package com.cr.cag;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.InsertManyResult;
+
+//mongod stand-in: every insertMany takes latency ms, blocking a worker with the sync sink, on a timer with the reactive one
+//virtual: the sync sink on virtual threads, needs Java 21 (-Pjava21)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagSinkBenchmark
+{
+	private static final int MESSAGES = 10000;
+	//batches per invocation
+	private static final int BATCHES = 100;
+	
+	@Param({"sync","reactive","virtual"})
+	private String sink;
+	
+	@Param({"1024"})
+	private int size;
+	
+	@Param({"5"})
+	private int latency;
+	
+	//threads of the sync sink
+	@Param({"4"})
+	private int workers;
+	
+	//batches in flight with the reactive sink or virtual threads
+	@Param({"64"})
+	private int inflight;
+	
+	private CagMongo mongo;
+	private ThreadPoolTaskExecutor executor;
+	private ScheduledExecutorService mongod;
+	private LongAdder inserted = new LongAdder();
+	private CagMessage message;
+	
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup()
+	{
+		CagBench.quiet();
+		
+		CagProperties cag = new CagProperties();
+		cag.setMgSink("virtual".equals(sink)?"sync":sink);
+		cag.setMgVirtual("virtual".equals(sink));
+		cag.setMgWorkers(workers);
+		cag.setMgInFlight(inflight);
+		cag.setMgBatch(DataSize.ofKilobytes((size+1024-1)/1024*MESSAGES/BATCHES));
+		cag.setMgDelay(Duration.ofSeconds(1));
+		
+		MongoTemplate template = CagBench.template(i->
+		{
+			Thread.sleep(latency);
+			inserted.add(((List<?>)i.getArgument(0)).size());
+			return null;
+		});
+		
+		mongod = Executors.newSingleThreadScheduledExecutor();
+		com.mongodb.reactivestreams.client.MongoCollection<Document> rc = mock(com.mongodb.reactivestreams.client.MongoCollection.class,withSettings().stubOnly());
+		com.mongodb.reactivestreams.client.MongoDatabase rdb = mock(com.mongodb.reactivestreams.client.MongoDatabase.class,withSettings().stubOnly());
+		when(rdb.getCollection(anyString())).thenReturn(rc);
+		when(rc.insertMany(anyList(),any(InsertManyOptions.class))).thenAnswer(i->
+		{
+			int n = ((List<?>)i.getArgument(0)).size();
+			return (Publisher<InsertManyResult>)s->complete(s,n);
+		});
+		
+		CagExecutor e = new CagExecutor();
+		ReflectionTestUtils.setField(e,"cag",cag);
+		executor = e.executor();
+		executor.initialize();
+		
+		mongo = CagBench.mongo(cag,template,"reactive".equals(sink)?rdb:null,executor);
+		
+		Document m = new Document();
+		m.putAll(CagLoader.fields(new Random(size),size));
+		m.put("size",size);
+		message = new CagMessage(m,size,System.nanoTime());
+	}
+	
+	//a publisher of no results completing latency ms after it is requested
+	private void complete(Subscriber<? super InsertManyResult> s, int n)
+	{
+		s.onSubscribe(new Subscription()
+		{
+			@Override
+			public void request(long r)
+			{
+				mongod.schedule(()->
+				{
+					inserted.add(n);
+					s.onComplete();
+				},latency,TimeUnit.MILLISECONDS);
+			}
+			
+			@Override
+			public void cancel()
+			{
+			}
+		});
+	}
+	
+	@TearDown
+	public void teardown()
+	{
+		executor.shutdown();
+		mongod.shutdown();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void offer()
+	{
+		long target = inserted.sum()+MESSAGES;
+		
+		for(int i=0;i<MESSAGES;i++)
+			mongo.offer(message);
+		
+		while(inserted.sum() < target)
+			LockSupport.parkNanos(10000L);
+	}
+}
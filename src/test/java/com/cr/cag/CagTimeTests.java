@@ -0,0 +1,119 @@
+package com.cr.cag;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+class CagTimeTests
+{
+	private static final long FROM = 0L;
+	//2100-01-01
+	private static final long TO = 4102444800000L;
+	
+	//random instants, and instants alternating between two days
+	@Test
+	void parse() throws ParseException
+	{
+		SimpleDateFormat f = format("yyyyMMddHHmmssSSS");
+		Random r = new Random(0);
+		
+		for(int i=0;i<100000;i++)
+		{
+			String s = f.format(new Date(i%4<2?random(r):1593648000000L+(i%2)*86400000L+r.nextInt(86400000)));
+			
+			assertEquals(f.parse(s).getTime(),parse(s),s);
+		}
+	}
+	
+	//single characters changed, invalid dates and fields out of range
+	@Test
+	void invalid()
+	{
+		SimpleDateFormat f = format("yyyyMMddHHmmssSSS");
+		Random r = new Random(0);
+		String[] fixed = {"20200230000000000","20190229000000000","20200229000000000","20201301000000000","20200100000000000",
+				"20200101240000000","20200101006000000","20200101000060000","2020010100000000","202001010000000000","2020O101000000000"};
+		
+		for(String s : fixed)
+			assertEquals(reference(f,s),parse(s),s);
+		
+		for(int i=0;i<100000;i++)
+		{
+			char[] c = f.format(new Date(random(r))).toCharArray();
+			//the century kept, SimpleDateFormat is julian before 1582
+			c[2+r.nextInt(c.length-2)] = r.nextInt(8)==0?'a':(char)('0'+r.nextInt(10));
+			
+			String s = new String(c);
+			assertEquals(reference(f,s),parse(s),s);
+		}
+	}
+	
+	@Test
+	void format()
+	{
+		SimpleDateFormat f = format("yyyy-MM-dd HH:mm:ss.SSS");
+		Random r = new Random(0);
+		
+		for(int i=0;i<100000;i++)
+		{
+			long t = i%4<2?random(r):1593648000000L+(i%2)*86400000L+r.nextInt(86400000);
+			
+			assertEquals(f.format(new Date(t)),CagTime.format(t,new StringBuilder()).toString(),Long.toString(t));
+		}
+	}
+	
+	private static SimpleDateFormat format(String pattern)
+	{
+		SimpleDateFormat f = new SimpleDateFormat(pattern);
+		f.setLenient(false);
+		
+		return f;
+	}
+	
+	private static long random(Random r)
+	{
+		return FROM+(long)(r.nextDouble()*(TO-FROM));
+	}
+	
+	private static long parse(String s)
+	{
+		ByteBuf buf = Unpooled.copiedBuffer(s,StandardCharsets.US_ASCII);
+		
+		return CagTime.parse(buf,0,buf.readableBytes());
+	}
+	
+	//all 17 characters, SimpleDateFormat stops at the first one it cannot take
+	//a time in the gap of an offset change is moved forward by the gap, as the lenient parser did
+	private static long reference(SimpleDateFormat f, String s)
+	{
+		if(s.length() != 17)
+			return CagTime.INVALID;
+		
+		ParsePosition p = new ParsePosition(0);
+		Date d = f.parse(s,p);
+		if(d != null)
+			return p.getIndex()==17?d.getTime():CagTime.INVALID;
+		
+		SimpleDateFormat l = (SimpleDateFormat)f.clone();
+		l.setLenient(true);
+		p = new ParsePosition(0);
+		d = l.parse(s,p);
+		if(d == null || p.getIndex() != 17)
+			return CagTime.INVALID;
+		
+		//fields out of range roll over into the date or the minutes
+		String g = f.format(d);
+		
+		return g.substring(0,8).equals(s.substring(0,8))&&g.substring(10).equals(s.substring(10))?d.getTime():CagTime.INVALID;
+	}
+}
@@ -0,0 +1,141 @@
+package com.cr.cag;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+//the server over loopback with each transport, messages dropped at the sink, the same client for all of them
+//the setup fails when the server falls back to nio
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagTransportBenchmark
+{
+	private static final int CONNECTIONS = 16;
+	//frames in flight per connection and invocation
+	private static final int PIPELINE = 16;
+	
+	@Param({"nio","epoll"})
+	private String transport;
+	
+	@Param({"1024"})
+	private int size;
+	
+	private CagServer server;
+	private EventLoopGroup group;
+	private List<Channel> channels = new ArrayList<>();
+	private LongAdder acked = new LongAdder();
+	private ByteBuf frame;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		CagBench.quiet();
+		
+		CagProperties cag = new CagProperties();
+		cag.setNtTransport(transport);
+		cag.setNtBosses(1);
+		cag.setNtWorkers(1);
+		cag.setDcMaxSize(DataSize.ofMegabytes(1));
+		server = CagBench.server(cag);
+		
+		if(!transport.equals(ReflectionTestUtils.getField(server,"transport")))
+		{
+			CagBench.shutdown(server);
+			
+			throw new IllegalStateException("transport "+transport+" unavailable");
+		}
+		
+		Charset charset = Charset.forName(cag.getDcCharset());
+		frame = CagBench.frame(CagLoader.fields(new Random(size),size,charset),charset);
+		
+		group = Epoll.isAvailable()?new EpollEventLoopGroup(1):new NioEventLoopGroup(1);
+		Bootstrap b = new Bootstrap()
+				.group(group)
+				.channel(Epoll.isAvailable()?EpollSocketChannel.class:NioSocketChannel.class)
+				.option(ChannelOption.TCP_NODELAY,true);
+		
+		for(int i=0;i<CONNECTIONS;i++)
+			channels.add(CagBench.connect(b.clone().handler(new Acks()),cag));
+	}
+	
+	@TearDown
+	public void teardown()
+	{
+		channels.forEach(Channel::close);
+		group.shutdownGracefully().awaitUninterruptibly();
+		CagBench.shutdown(server);
+		frame.release();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(CONNECTIONS*PIPELINE)
+	public void ingest()
+	{
+		long target = acked.sum()+CONNECTIONS*PIPELINE;
+		
+		for(Channel ch : channels)
+		{
+			for(int i=0;i<PIPELINE;i++)
+				ch.write(frame.retainedDuplicate(),ch.voidPromise());
+			ch.flush();
+		}
+		
+		while(acked.sum() < target)
+			LockSupport.parkNanos(10000L);
+	}
+	
+	//36 bytes of header per frame
+	private class Acks extends ChannelInboundHandlerAdapter
+	{
+		private int bytes;
+		
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+		{
+			ByteBuf m = (ByteBuf)msg;
+			
+			bytes += m.readableBytes();
+			acked.add(bytes/(4*9));
+			bytes %= 4*9;
+			
+			m.release();
+		}
+	}
+}
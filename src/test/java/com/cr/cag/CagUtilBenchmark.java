@@ -0,0 +1,73 @@
+package com.cr.cag;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class CagUtilBenchmark
+{
+	@Param({"false","true"})
+	private boolean raw;
+	
+	@Param({"1024"})
+	private int dump;
+	
+	private CagMessage message;
+	private ByteBuf frame;
+	
+	@Setup
+	public void setup()
+	{
+		CagBench.quiet();
+		
+		CagProperties cag = new CagProperties();
+		cag.setDcRawBson(raw);
+		
+		frame = CagBench.frame(CagLoader.fields(new Random(0),4096),StandardCharsets.UTF_8);
+		
+		EmbeddedChannel channel = new EmbeddedChannel(CagBench.decoder(cag));
+		channel.writeInbound(frame.retainedDuplicate());
+		message = channel.readInbound();
+		channel.finishAndReleaseAll();
+	}
+	
+	@TearDown
+	public void teardown()
+	{
+		frame.release();
+	}
+	
+	@Benchmark
+	public String message()
+	{
+		return CagUtil.toString(message);
+	}
+	
+	@Benchmark
+	public String hex()
+	{
+		return CagUtil.toString(frame,0,dump);
+	}
+}